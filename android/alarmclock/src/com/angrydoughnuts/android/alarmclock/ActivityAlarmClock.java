@@ -15,6 +15,7 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
+import java.util.ArrayList;
 import java.util.Calendar;
 
 import android.app.Activity;
@@ -49,22 +50,25 @@ public final class ActivityAlarmClock extends Activity {
 
   private AlarmClockServiceBinder service;
   private NotificationServiceBinder notifyService;
-  private DbAccessor db;
   private AlarmViewAdapter adapter;
+  private ListView alarmList;
   private TextView clock;
   private Button testBtn;
   private Button pendingBtn;
   private Handler handler;
   private Runnable tickCallback;
+  private ScheduleListener scheduleListener;
+  private LaunchTimer launchTimer;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    launchTimer = new LaunchTimer(this);
     setContentView(R.layout.alarm_list);
 
-    // Access to in-memory and persistent data structures.
+    // Access to in-memory and persistent data structures.  The database is
+    // opened and read by the adapter in the background.
     service = new AlarmClockServiceBinder(getApplicationContext());
-    db = new DbAccessor(getApplicationContext());
     handler = new Handler();
     notifyService = new NotificationServiceBinder(getApplicationContext());
 
@@ -83,7 +87,6 @@ public final class ActivityAlarmClock extends Activity {
             Calendar.HOUR_OF_DAY),
             testTime.get(Calendar.MINUTE),
             testTime.get(Calendar.SECOND)));
-        adapter.requery();
       }
     });
 
@@ -107,8 +110,21 @@ public final class ActivityAlarmClock extends Activity {
 
     // Setup the alarm list and the underlying adapter.  Clicking an individual
     // item will start the settings activity.
-    final ListView alarmList = (ListView) findViewById(R.id.alarm_list);
-    adapter = new AlarmViewAdapter(this, db, service);
+    alarmList = (ListView) findViewById(R.id.alarm_list);
+    adapter = new AlarmViewAdapter(this, service, alarmList);
+    adapter.setLoadListener(new Runnable() {
+      @Override
+      public void run() {
+        launchTimer.loaded();
+      }
+    });
+    // Show the list from before a configuration change right away, rather
+    // than an empty list until the first load completes.
+    @SuppressWarnings("unchecked")
+    ArrayList<AlarmInfo> retained = (ArrayList<AlarmInfo>) getLastNonConfigurationInstance();
+    if (retained != null) {
+      adapter.setAlarms(retained);
+    }
     alarmList.setAdapter(adapter);
     alarmList.setOnItemClickListener(new OnItemClickListener() {
       @Override
@@ -137,14 +153,58 @@ public final class ActivityAlarmClock extends Activity {
         handler.postDelayed(tickCallback, next);
       }
     };
+
+    // Requests to the service complete asynchronously.  The service reports
+    // each change here, on a binder thread, and the affected row is updated
+    // on the UI thread.
+    scheduleListener = new ScheduleListener.Stub() {
+      @Override
+      public void alarmScheduled(final long alarmId, final long nextFire, final long version) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            adapter.alarmScheduled(alarmId, nextFire, version);
+          }
+        });
+      }
+      @Override
+      public void alarmUnscheduled(final long alarmId, final boolean deleted, final long version) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            adapter.alarmUnscheduled(alarmId, deleted, version);
+          }
+        });
+      }
+      @Override
+      public void alarmSnoozed(final long alarmId, final long nextFire, final long version) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            adapter.alarmSnoozed(alarmId, nextFire, version);
+          }
+        });
+      }
+      @Override
+      public void alarmFired(final long alarmId, final long version) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            adapter.alarmFired(alarmId, version);
+          }
+        });
+      }
+    };
   }
 
   @Override
   protected void onResume() {
     super.onResume();
     service.bind();
+    service.addScheduleListener(scheduleListener);
     handler.post(tickCallback);
-    adapter.requery();
+    adapter.invalidateSchedule();
+    adapter.reload();
     notifyService.bind();
     notifyService.call(new NotificationServiceBinder.ServiceCallback() {
       @Override
@@ -175,13 +235,19 @@ public final class ActivityAlarmClock extends Activity {
   protected void onPause() {
     super.onPause();
     handler.removeCallbacks(tickCallback);
+    service.removeScheduleListener(scheduleListener);
     service.unbind();
   }
 
   @Override
   protected void onDestroy() {
     super.onDestroy();
-    db.closeConnections();
+    adapter.close();
+  }
+
+  @Override
+  public Object onRetainNonConfigurationInstance() {
+    return adapter.alarms();
   }
 
   @Override
@@ -228,8 +294,8 @@ public final class ActivityAlarmClock extends Activity {
       pendingBtn.setVisibility(View.GONE);
     }
 
-    // Recompute expiration times in the list view
-    adapter.notifyDataSetChanged();
+    // Recompute expiration times in the visible rows of the list view.
+    adapter.refreshCountdowns();
 
     // Update clock
     Calendar c = Calendar.getInstance();
@@ -237,7 +303,10 @@ public final class ActivityAlarmClock extends Activity {
         c.get(Calendar.HOUR_OF_DAY),
         c.get(Calendar.MINUTE),
         c.get(Calendar.SECOND));
-    clock.setText(time.localizedString(getApplicationContext()));
+    String clockText = time.localizedString(getApplicationContext());
+    if (!clockText.equals(clock.getText().toString())) {
+      clock.setText(clockText);
+    }
   }
 
   @Override
@@ -249,10 +318,9 @@ public final class ActivityAlarmClock extends Activity {
             new TimePickerDialog.OnTimeSetListener() {
               @Override
               public void onTimeSet(int hourOfDay, int minute, int second) {
-                // When a time is selected, create it via the service and
-                // force the list view to re-query the alarm list. 
+                // When a time is selected, create it via the service.  The
+                // list view re-queries when the service reports the change.
                 service.createAlarm(new AlarmTime(hourOfDay, minute, second));
-                adapter.requery();
                 // Destroy this dialog so that it does not save its state.
                 removeDialog(Dialogs.TIME_PICKER.ordinal());
               }
@@ -272,7 +340,6 @@ public final class ActivityAlarmClock extends Activity {
           @Override
           public void onClick(DialogInterface dialog, int which) {
             service.deleteAllAlarms();
-            adapter.requery();
             dismissDialog(Dialogs.DELETE_CONFIRM.ordinal());
           }
         });
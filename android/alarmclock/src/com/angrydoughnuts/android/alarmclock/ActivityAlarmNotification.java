@@ -23,7 +23,9 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.view.WindowManager;
 import android.view.View.OnClickListener;
 import android.widget.Button;
@@ -36,15 +38,27 @@ import android.widget.TextView;
  * NOTE: This class assumes that it will never be instantiated nor active
  * more than once at the same time. (ie, it assumes
  * android:launchMode="singleInstance" is set in the manifest file).
+ * The first frame is drawn from the EXTRAS_* values supplied by the
+ * NotificationService.  Binding to the service, the database and the ringing
+ * state subscription are deferred until that frame has been drawn.
  */
 public final class ActivityAlarmNotification extends Activity {
   public final static String TIMEOUT_COMMAND = "timeout";
+  public final static String EXTRAS_ALARM_ID = "alarm_id";
+  public final static String EXTRAS_LABEL = "label";
+  public final static String EXTRAS_TIME = "time";
+  public final static String EXTRAS_SNOOZE_MINUTES = "snooze_minutes";
+  // SystemClock.elapsedRealtime() when the alarm intent was received.
+  public final static String EXTRAS_RECEIVED_AT = "received_at";
   private enum Dialogs { TIMEOUT }
 
   private NotificationServiceBinder notifyService;
   private DbAccessor db;
   private Handler handler;
-  private Runnable timeTick;
+  private RingingListener ringingListener;
+  private boolean firstFrameDrawn;
+  // The alarm currently drawn, or -1.
+  private long shownAlarmId = -1;
 
   // Dialog state
   int snoozeMinutes;
@@ -52,32 +66,44 @@ public final class ActivityAlarmNotification extends Activity {
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    // Measured from the time the alarm was received.
+    new LaunchTimer(this, getIntent().getLongExtra(
+        EXTRAS_RECEIVED_AT, SystemClock.elapsedRealtime()));
     setContentView(R.layout.notification);
     // Make sure this window always shows over the lock screen.
     getWindow().addFlags(WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED);
 
-    db = new DbAccessor(getApplicationContext());
-
-    // Start the notification service and bind to it.
     notifyService = new NotificationServiceBinder(getApplicationContext());
-    notifyService.bind();
-
-    // Setup a self-scheduling event loops.
     handler = new Handler();
 
-    timeTick = new Runnable() {
+    // Draw what we can from the launching intent.  Everything else waits
+    // until the first frame is on the screen.
+    drawFromIntent(getIntent());
+    final View root = getWindow().getDecorView();
+    root.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+      @Override
+      public boolean onPreDraw() {
+        root.getViewTreeObserver().removeOnPreDrawListener(this);
+        // Let this frame finish before doing the deferred work.
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            onFirstFrame();
+          }
+        });
+        return true;
+      }
+    });
+
+    // The service pushes its state whenever it changes, on a binder thread.
+    ringingListener = new RingingListener.Stub() {
       @Override
-      public void run() {
-        notifyService.call(new NotificationServiceBinder.ServiceCallback() {
+      public void ringingStateChanged(final long alarmId, int firingCount,
+          final float volume, long timeoutAt) {
+        handler.post(new Runnable() {
           @Override
-          public void run(NotificationServiceInterface service) {
-            try {
-              TextView volume = (TextView) findViewById(R.id.volume);
-              volume.setText("Volume: " + service.volume());
-            } catch (RemoteException e) {}
-
-            long next = AlarmUtil.millisTillNextInterval(AlarmUtil.Interval.SECOND);
-            handler.postDelayed(timeTick, next);
+          public void run() {
+            drawState(alarmId, volume);
           }
         });
       }
@@ -129,24 +155,40 @@ public final class ActivityAlarmNotification extends Activity {
     });
   }
 
+  private void onFirstFrame() {
+    firstFrameDrawn = true;
+    db = new DbAccessor(getApplicationContext());
+    // Start the notification service and bind to it.
+    notifyService.bind();
+    notifyService.addRingingListener(ringingListener);
+    redraw();
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
-    handler.post(timeTick);
-    redraw();
+    if (firstFrameDrawn) {
+      notifyService.addRingingListener(ringingListener);
+      redraw();
+    }
   }
 
   @Override
   protected void onPause() {
     super.onPause();
-    handler.removeCallbacks(timeTick);
+    if (firstFrameDrawn) {
+      notifyService.removeRingingListener(ringingListener);
+    }
   }
 
   @Override
   protected void onDestroy() {
     super.onDestroy();
-    db.closeConnections();
-    notifyService.unbind();
+    handler.removeCallbacksAndMessages(null);
+    if (firstFrameDrawn) {
+      db.closeConnections();
+      notifyService.unbind();
+    }
   }
 
   @Override
@@ -186,8 +228,49 @@ public final class ActivityAlarmNotification extends Activity {
     }
   }
 
+  private void drawFromIntent(Intent intent) {
+    Bundle extras = intent.getExtras();
+    if (extras == null || !extras.containsKey(EXTRAS_ALARM_ID)) {
+      return;
+    }
+    if (snoozeMinutes == 0) {
+      snoozeMinutes = extras.getInt(EXTRAS_SNOOZE_MINUTES);
+    }
+    drawInfo(extras.getLong(EXTRAS_ALARM_ID),
+        extras.getString(EXTRAS_TIME), extras.getString(EXTRAS_LABEL));
+  }
+
+  private void drawState(long alarmId, float volume) {
+    // A different session started ringing.
+    if (alarmId != -1 && alarmId != shownAlarmId) {
+      redraw();
+    }
+    TextView volumeText = (TextView) findViewById(R.id.volume);
+    String text = "Volume: " + volume;
+    if (!text.equals(volumeText.getText().toString())) {
+      volumeText.setText(text);
+    }
+  }
+
+  private void drawInfo(long alarmId, String time, String label) {
+    shownAlarmId = alarmId;
+    String info = time + "\n" + label;
+    if (AppSettings.isDebugMode(getApplicationContext())) {
+      info += " [" + alarmId + "]";
+      findViewById(R.id.volume).setVisibility(View.VISIBLE);
+    } else {
+      findViewById(R.id.volume).setVisibility(View.GONE);
+    }
+    TextView infoText = (TextView) findViewById(R.id.alarm_info);
+    infoText.setText(info);
+    TextView snoozeInfo = (TextView) findViewById(R.id.notify_snooze_time);
+    snoozeInfo.setText(getString(R.string.snooze) + "\n"
+        + getString(R.string.minutes, snoozeMinutes));
+  }
+
   private final void redraw() {
-    notifyService.call(new NotificationServiceBinder.ServiceCallback() {
+    // Only the latest redraw matters.
+    notifyService.callLatest("redraw", new NotificationServiceBinder.ServiceCallback() {
       @Override
       public void run(NotificationServiceInterface service) {
         long alarmId;
@@ -200,18 +283,7 @@ public final class ActivityAlarmNotification extends Activity {
         if (snoozeMinutes == 0) {
           snoozeMinutes = db.readAlarmSettings(alarmId).getSnoozeMinutes();
         }
-        String info = alarmInfo.getTime().toString() + "\n" + alarmInfo.getName();
-        if (AppSettings.isDebugMode(getApplicationContext())) {
-          info += " [" + alarmId + "]";
-          findViewById(R.id.volume).setVisibility(View.VISIBLE);
-        } else {
-          findViewById(R.id.volume).setVisibility(View.GONE);
-        }
-        TextView infoText = (TextView) findViewById(R.id.alarm_info);
-        infoText.setText(info);
-        TextView snoozeInfo = (TextView) findViewById(R.id.notify_snooze_time);
-        snoozeInfo.setText(getString(R.string.snooze) + "\n"
-            + getString(R.string.minutes, snoozeMinutes));
+        drawInfo(alarmId, alarmInfo.getTime().toString(), alarmInfo.getName());
       }
     });
   }
@@ -28,6 +28,7 @@ import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnMultiChoiceClickListener;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -86,10 +87,14 @@ public final class ActivityAlarmSettings extends Activity {
   private AlarmSettings originalSettings;
   private AlarmSettings settings;
   SettingsAdapter settingsAdapter;
+  private Button okButton;
+  private LaunchTimer launchTimer;
+  private boolean destroyed;
 
   @Override
   protected void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
+    launchTimer = new LaunchTimer(this);
     setContentView(R.layout.settings);
 
     // An alarm id is required in the extras bundle.
@@ -100,22 +105,14 @@ public final class ActivityAlarmSettings extends Activity {
 
     // Access to in-memory and persistent data structures.
     service = new AlarmClockServiceBinder(getApplicationContext());
-    db = new DbAccessor(getApplicationContext());
-
-    // Read the current settings from the database.  Keep a copy of the
-    // original values so that we can write new values only if they differ
-    // from the originals.
-    originalInfo = db.readAlarmInfo(alarmId);
-    // Info will not be available for the default settings.
-    if (originalInfo != null) {
-      info = new AlarmInfo(originalInfo);
-    }
-    originalSettings = db.readAlarmSettings(alarmId);
-    settings = new AlarmSettings(originalSettings);
+    // Have the tone index ready by the time the tone picker is opened.
+    ToneIndex.get(this);
 
     // Setup individual UI elements.
     // Positive acknowledgment button.
-    final Button okButton = (Button) findViewById(R.id.settings_ok);
+    // Nothing can be written until the database has been opened.
+    okButton = (Button) findViewById(R.id.settings_ok);
+    okButton.setEnabled(false);
     okButton.setOnClickListener(new OnClickListener() {
       @Override
       public void onClick(View v) {
@@ -157,6 +154,92 @@ public final class ActivityAlarmSettings extends Activity {
       }
     });
 
+    // The delete button should not be shown when editing the default settings.
+    if (alarmId == AlarmSettings.DEFAULT_SETTINGS_ID) {
+      deleteButton.setVisibility(View.GONE);
+    }
+
+    // Edits in progress are kept across configuration changes.  Otherwise,
+    // the settings are read in the background and the list is filled in when
+    // they arrive.  A restored dialog reads the settings as soon as it is
+    // created, so they are read right away when state is being restored.
+    State retained = (State) getLastNonConfigurationInstance();
+    if (retained == null && savedInstanceState != null) {
+      DbAccessor db = new DbAccessor(getApplicationContext());
+      showSettings(db, State.read(db, alarmId));
+    } else {
+      new SettingsLoader(retained).execute();
+    }
+  }
+
+  /**
+   * The values being edited, along with the values read from the database.
+   */
+  private static final class State {
+    final AlarmInfo originalInfo;
+    final AlarmInfo info;
+    final AlarmSettings originalSettings;
+    final AlarmSettings settings;
+
+    State(AlarmInfo originalInfo, AlarmInfo info,
+        AlarmSettings originalSettings, AlarmSettings settings) {
+      this.originalInfo = originalInfo;
+      this.info = info;
+      this.originalSettings = originalSettings;
+      this.settings = settings;
+    }
+
+    // Read the current settings from the database.  Keep a copy of the
+    // original values so that we can write new values only if they differ
+    // from the originals.
+    static State read(DbAccessor db, long alarmId) {
+      AlarmInfo originalInfo = db.readAlarmInfo(alarmId);
+      AlarmInfo info = null;
+      // Info will not be available for the default settings.
+      if (originalInfo != null) {
+        info = new AlarmInfo(originalInfo);
+      }
+      AlarmSettings originalSettings = db.readAlarmSettings(alarmId);
+      return new State(originalInfo, info,
+          originalSettings, new AlarmSettings(originalSettings));
+    }
+  }
+
+  /**
+   * Opens the database and, unless a retained state was supplied, reads the
+   * settings off the UI thread.
+   */
+  private final class SettingsLoader extends AsyncTask<Void, Void, State> {
+    private final State retained;
+    private DbAccessor db;
+
+    SettingsLoader(State retained) {
+      this.retained = retained;
+    }
+
+    @Override
+    protected State doInBackground(Void... params) {
+      db = new DbAccessor(getApplicationContext());
+      return retained != null ? retained : State.read(db, alarmId);
+    }
+
+    @Override
+    protected void onPostExecute(State state) {
+      if (destroyed) {
+        db.closeConnections();
+        return;
+      }
+      showSettings(db, state);
+    }
+  }
+
+  private void showSettings(DbAccessor db, State state) {
+    this.db = db;
+    originalInfo = state.originalInfo;
+    info = state.info;
+    originalSettings = state.originalSettings;
+    settings = state.settings;
+
     // Setup the list of settings.  Each setting is represented by a Setting
     // object.  Create one here for each setting type.
     final ArrayList<Setting> settingsObjects =
@@ -238,16 +321,13 @@ public final class ActivityAlarmSettings extends Activity {
       @Override
       public SettingType type() { return SettingType.VOLUME_FADE; }
     });
-    
+
     final ListView settingsList = (ListView) findViewById(R.id.settings_list);
     settingsAdapter = new SettingsAdapter(getApplicationContext(), settingsObjects);
     settingsList.setAdapter(settingsAdapter);
     settingsList.setOnItemClickListener(new SettingsListClickListener());
-
-    // The delete button should not be shown when editing the default settings.
-    if (alarmId == AlarmSettings.DEFAULT_SETTINGS_ID) {
-      deleteButton.setVisibility(View.GONE);
-    }
+    okButton.setEnabled(true);
+    launchTimer.loaded();
   }
 
   @Override
@@ -265,7 +345,19 @@ public final class ActivityAlarmSettings extends Activity {
   @Override
   protected void onDestroy() {
     super.onDestroy();
-    db.closeConnections();
+    // If the loader is still running, it closes the database when it's done.
+    destroyed = true;
+    if (db != null) {
+      db.closeConnections();
+    }
+  }
+
+  @Override
+  public Object onRetainNonConfigurationInstance() {
+    if (settings == null) {
+      return null;
+    }
+    return new State(originalInfo, info, originalSettings, settings);
   }
 
   @Override
@@ -21,18 +21,28 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
+import android.widget.Toast;
 
 /**
  * This is a simple activity which displays all of the scheduled (in memory)
- * alarms that currently exist (For debugging only). 
+ * alarms that currently exist (For debugging only).  The cost of a call to
+ * the service can be measured from the options menu.
  */
 public final class ActivityPendingAlarms extends Activity {
+  private static final String TAG = "ActivityPendingAlarms";
+  private enum Menus { BENCHMARK };
   boolean connected;
   private ListView listView;
+  private AlarmClockInterface clock;
+  private Handler handler;
   
   @Override
   protected void onCreate(Bundle savedInstanceState) {
@@ -41,6 +51,7 @@ public final class ActivityPendingAlarms extends Activity {
 
     connected = false;
     listView = (ListView) findViewById(R.id.pending_alarm_list);
+    handler = new Handler();
   }
 
   @Override
@@ -56,22 +67,106 @@ public final class ActivityPendingAlarms extends Activity {
   protected void onPause() {
     super.onPause();
     if (connected) {
+      try {
+        clock.removeScheduleListener(scheduleListener);
+      } catch (RemoteException e) {
+        e.printStackTrace();
+      }
       unbindService(connection);
     }
   }
 
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    MenuItem benchmark =
+      menu.add(0, Menus.BENCHMARK.ordinal(), 0, R.string.benchmark_binder);
+    benchmark.setIcon(android.R.drawable.ic_menu_info_details);
+    return super.onCreateOptionsMenu(menu);
+  }
+
+  @Override
+  public boolean onOptionsItemSelected(MenuItem item) {
+    switch (Menus.values()[item.getItemId()]) {
+      case BENCHMARK:
+        if (connected) {
+          new Thread(benchmark).start();
+        }
+        break;
+    }
+    return super.onOptionsItemSelected(item);
+  }
+
+  private void redraw() {
+    try {
+      ArrayAdapter<AlarmTime> adapter = new ArrayAdapter<AlarmTime>(
+          getApplicationContext(), R.layout.pending_alarms_item, clock.pendingAlarmTimes());
+      listView.setAdapter(adapter);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
+  }
+
+  // Every change to the schedule redraws the whole list.  The list holds no
+  // alarm ids, so there is no single row to update.
+  private final ScheduleListener scheduleListener = new ScheduleListener.Stub() {
+    private final Runnable redraw = new Runnable() {
+      @Override
+      public void run() {
+        if (connected) {
+          redraw();
+        }
+      }
+    };
+    @Override
+    public void alarmScheduled(long alarmId, long nextFire, long version) {
+      handler.post(redraw);
+    }
+    @Override
+    public void alarmUnscheduled(long alarmId, boolean deleted, long version) {
+      handler.post(redraw);
+    }
+    @Override
+    public void alarmSnoozed(long alarmId, long nextFire, long version) {
+      handler.post(redraw);
+    }
+    @Override
+    public void alarmFired(long alarmId, long version) {
+      handler.post(redraw);
+    }
+  };
+
+  // Measures the cost of a call to the service and reports it in the log and
+  // a toast.  Runs on its own thread since it makes a few hundred calls.
+  private final Runnable benchmark = new Runnable() {
+    @Override
+    public void run() {
+      final String result;
+      try {
+        result = BinderBenchmark.run(clock, 200);
+      } catch (RemoteException e) {
+        return;
+      }
+      Log.i(TAG, result);
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          Toast.makeText(getApplicationContext(), result, Toast.LENGTH_LONG).show();
+        }
+      });
+    }
+  };
+
   private final ServiceConnection connection = new ServiceConnection() {
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
       connected = true;
-      AlarmClockInterface clock = AlarmClockInterface.Stub.asInterface(service);
+      clock = AlarmClockInterface.Stub.asInterface(service);
       try {
-        ArrayAdapter<AlarmTime> adapter = new ArrayAdapter<AlarmTime>(
-            getApplicationContext(), R.layout.pending_alarms_item, clock.pendingAlarmTimes());
-        listView.setAdapter(adapter);
+        clock.addScheduleListener(scheduleListener);
       } catch (RemoteException e) {
         e.printStackTrace();
       }
+      redraw();
     }
 
     @Override
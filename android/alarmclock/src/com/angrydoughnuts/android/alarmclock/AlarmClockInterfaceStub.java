@@ -16,16 +16,29 @@
 package com.angrydoughnuts.android.alarmclock;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.util.Log;
 import android.widget.Toast;
 
+/**
+ * Binder interface to the AlarmClockService.  Calls which change the
+ * schedule are queued on the service's worker thread and return immediately.
+ * They are declared oneway, so remote callers don't wait either; the results
+ * are reported through ScheduleListener.  Since oneway calls arrive on binder
+ * threads, which have no Looper, debug toasts are shown from the main thread.
+ */
 public final class AlarmClockInterfaceStub extends AlarmClockInterface.Stub {
+  private static final String TAG = "AlarmClockInterfaceStub";
   private Context context;
   private AlarmClockService service;
+  private Handler mainHandler;
   
   AlarmClockInterfaceStub(Context context, AlarmClockService service) {
     this.context = context;
     this.service = service;
+    this.mainHandler = new Handler(Looper.getMainLooper());
   }
 
   @Override
@@ -35,59 +48,156 @@ public final class AlarmClockInterfaceStub extends AlarmClockInterface.Stub {
 
   @Override
   public AlarmTime[] pendingAlarmTimes() throws RemoteException {
-    return service.pendingAlarmTimes();
+    AlarmTime[] times = service.pendingAlarmTimes();
+    if (AppSettings.isDebugMode(context)) {
+      Log.d(TAG, "pendingAlarmTimes: " + AlarmTime.wireSizeString(times));
+    }
+    return times;
+  }
+
+  @Override
+  public PendingSchedule pendingSchedule(long knownVersion) throws RemoteException {
+    return service.pendingSchedule(knownVersion);
+  }
+
+  @Override
+  public void addScheduleListener(ScheduleListener listener) throws RemoteException {
+    service.addScheduleListener(listener);
+  }
+
+  @Override
+  public void removeScheduleListener(ScheduleListener listener) throws RemoteException {
+    service.removeScheduleListener(listener);
   }
 
   @Override
-  public void createAlarm(AlarmTime time) throws RemoteException {
+  public void createAlarm(final AlarmTime time) throws RemoteException {
     debugToast("CREATE ALARM " + time.toString());
-    service.createAlarm(time);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.createAlarm(time);
+      }
+    });
   }
 
   @Override
-  public void deleteAlarm(long alarmId) throws RemoteException {
+  public void deleteAlarm(final long alarmId) throws RemoteException {
     debugToast("DELETE ALARM " + alarmId);
-    service.deleteAlarm(alarmId);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.deleteAlarm(alarmId);
+      }
+    });
   }
 
   @Override
   public void deleteAllAlarms() throws RemoteException {
     debugToast("DELETE ALL ALARMS");
-    service.deleteAllAlarms();
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.deleteAllAlarms();
+      }
+    });
   }
 
   @Override
-  public void scheduleAlarm(long alarmId) throws RemoteException {
+  public void scheduleAlarm(final long alarmId) throws RemoteException {
     debugToast("SCHEDULE ALARM " + alarmId);
-    service.scheduleAlarm(alarmId);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.scheduleAlarm(alarmId);
+      }
+    });
   }
 
   @Override
-  public void unscheduleAlarm(long alarmId) {
+  public void unscheduleAlarm(final long alarmId) {
     debugToast("UNSCHEDULE ALARM " + alarmId);
-    service.dismissAlarm(alarmId);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.dismissAlarm(alarmId);
+      }
+    });
   }
 
-  public void acknowledgeAlarm(long alarmId) {
+  public void acknowledgeAlarm(final long alarmId) {
     debugToast("ACKNOWLEDGE ALARM " + alarmId);
-    service.acknowledgeAlarm(alarmId);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.acknowledgeAlarm(alarmId);
+      }
+    });
   }
 
   @Override
-  public void snoozeAlarm(long alarmId) throws RemoteException {
+  public void acknowledgeAlarms(final long[] alarmIds) throws RemoteException {
+    debugToast("ACKNOWLEDGE " + alarmIds.length + " ALARMS");
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.acknowledgeAlarms(alarmIds);
+      }
+    });
+  }
+
+  @Override
+  public void snoozeAlarm(final long alarmId) throws RemoteException {
     debugToast("SNOOZE ALARM " + alarmId);
-    service.snoozeAlarm(alarmId);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.snoozeAlarm(alarmId);
+      }
+    });
   }
 
   @Override
-  public void snoozeAlarmFor(long alarmId, int minutes) throws RemoteException {
+  public void snoozeAlarmFor(final long alarmId, final int minutes) throws RemoteException {
     debugToast("SNOOZE ALARM " + alarmId + " for " + minutes);
-    service.snoozeAlarmFor(alarmId, minutes);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.snoozeAlarmFor(alarmId, minutes);
+      }
+    });
+  }
+
+  @Override
+  public void snoozeAlarmsFor(final long[] alarmIds, final int minutes) throws RemoteException {
+    debugToast("SNOOZE " + alarmIds.length + " ALARMS for " + minutes);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        service.snoozeAlarmsFor(alarmIds, minutes);
+      }
+    });
+  }
+
+  @Override
+  public void applyBatch(final CommandBatch batch) throws RemoteException {
+    debugToast("BATCH " + batch);
+    service.post(new Runnable() {
+      @Override
+      public void run() {
+        batch.applyTo(service);
+      }
+    });
   }
 
-  private void debugToast(String message) {
+  private void debugToast(final String message) {
     if (AppSettings.isDebugMode(context)) {
-      Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          Toast.makeText(context, message, Toast.LENGTH_SHORT).show();
+        }
+      });
     }
   }
 }
@@ -28,23 +28,46 @@ import android.content.SharedPreferences.Editor;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.provider.Settings;
 import android.widget.Toast;
 
+/**
+ * This service owns the set of scheduled alarms.  It is started explicitly
+ * whenever at least one alarm is pending and is bound to by the UI and by
+ * the NotificationService.
+ * Threading: every database access, AlarmManager call, notification update
+ * and Settings.System write happens on a single worker thread owned by this
+ * service.  The main thread only receives lifecycle callbacks and posts work
+ * to the worker.  Binder calls which mutate the schedule post a request to
+ * the worker and return immediately; clients learn about each resulting
+ * change through a registered ScheduleListener.  Read-only binder calls are
+ * answered directly from PendingAlarmList, which is thread safe.
+ */
 public final class AlarmClockService extends Service {
   public final static String COMMAND_EXTRA = "command";
   public final static int COMMAND_UNKNOWN = 1;
   public final static int COMMAND_NOTIFICATION_REFRESH = 2;
   public final static int COMMAND_DEVICE_BOOT = 3;
   public final static int COMMAND_TIMEZONE_CHANGE = 4;
+  public final static int COMMAND_ALARM_FIRED = 5;
 
   public final static int NOTIFICATION_BAR_ID = 69;
 
   private DbAccessor db;
   private PendingAlarmList pendingAlarms;
   private Notification notification;
+  private Handler worker;
+  private Runnable maybeShutdown;
+  // Only used from the worker thread.
+  private LockScreenText lockScreen;
+  // Only broadcast to from the worker thread.
+  private RemoteCallbackList<ScheduleListener> listeners;
 
   @Override
   public void onCreate() {
@@ -59,63 +82,162 @@ public final class AlarmClockService extends Service {
           new LoggingUncaughtExceptionHandler("/sdcard"));
     }
 
-    // Access to in-memory and persistent data structures.
-    db = new DbAccessor(getApplicationContext());
+    // All of the real work happens on this thread.
+    HandlerThread workerThread = new HandlerThread("AlarmClockService");
+    workerThread.start();
+    worker = new Handler(workerThread.getLooper());
+    lockScreen = new LockScreenText(getApplicationContext(), worker);
+
+    maybeShutdown = new Runnable() {
+      @Override
+      public void run() {
+        if (pendingAlarms.size() == 0) {
+          stopSelf();
+        }
+      }
+    };
+
+    // Access to in-memory data structures.
     pendingAlarms = new PendingAlarmList(getApplicationContext());
+    listeners = new RemoteCallbackList<ScheduleListener>();
 
-    // Schedule enabled alarms during initial startup.
-    for (Long alarmId : db.getEnabledAlarms()) {
-      if (pendingAlarms.pendingTime(alarmId) != null) {
-        continue;
+    notification = new Notification(R.drawable.alarmclock_notification, null, 0);
+    notification.flags |= Notification.FLAG_ONGOING_EVENT;
+
+    worker.post(new Runnable() {
+      @Override
+      public void run() {
+        // Access to persistent data structures.
+        db = new DbAccessor(getApplicationContext());
+
+        // Schedule enabled alarms during initial startup.
+        for (Long alarmId : db.getEnabledAlarms()) {
+          if (pendingAlarms.pendingTime(alarmId) != null) {
+            continue;
+          }
+          if (AppSettings.isDebugMode(getApplicationContext())) {
+            Toast.makeText(getApplicationContext(), "RENABLE " + alarmId, Toast.LENGTH_SHORT).show();
+          }
+          pendingAlarms.put(alarmId, db.readAlarmInfo(alarmId).getTime());
+          notifyScheduled(alarmId);
+        }
+
+        ReceiverNotificationRefresh.startRefreshing(getApplicationContext());
       }
-      if (AppSettings.isDebugMode(getApplicationContext())) {
-        Toast.makeText(getApplicationContext(), "RENABLE " + alarmId, Toast.LENGTH_SHORT).show();
+    });
+  }
+
+  /**
+   * Runs a client request on the worker thread.
+   */
+  void post(Runnable request) {
+    worker.post(request);
+  }
+
+  void addScheduleListener(ScheduleListener listener) {
+    listeners.register(listener);
+  }
+
+  void removeScheduleListener(ScheduleListener listener) {
+    listeners.unregister(listener);
+  }
+
+  private interface ScheduleEvent {
+    void send(ScheduleListener listener, long version) throws RemoteException;
+  }
+
+  private void broadcast(ScheduleEvent event) {
+    final long version = pendingAlarms.version();
+    int count = listeners.beginBroadcast();
+    for (int i = 0; i < count; ++i) {
+      try {
+        event.send(listeners.getBroadcastItem(i), version);
+      } catch (RemoteException e) {
+        // The RemoteCallbackList will take care of removing dead listeners.
       }
-      pendingAlarms.put(alarmId, db.readAlarmInfo(alarmId).getTime());
     }
+    listeners.finishBroadcast();
+  }
 
-    notification = new Notification(R.drawable.alarmclock_notification, null, 0);
-    notification.flags |= Notification.FLAG_ONGOING_EVENT;
+  // Each of these describes one logical change to the schedule, and commits
+  // it as one new version.
 
-    ReceiverNotificationRefresh.startRefreshing(getApplicationContext());
+  private void notifyScheduled(final long alarmId) {
+    pendingAlarms.commit();
+    final long nextFire = pendingAlarms.pendingTime(alarmId).calendar().getTimeInMillis();
+    broadcast(new ScheduleEvent() {
+      @Override
+      public void send(ScheduleListener listener, long version) throws RemoteException {
+        listener.alarmScheduled(alarmId, nextFire, version);
+      }
+    });
+  }
+
+  private void notifyUnscheduled(final long alarmId, final boolean deleted) {
+    pendingAlarms.commit();
+    broadcast(new ScheduleEvent() {
+      @Override
+      public void send(ScheduleListener listener, long version) throws RemoteException {
+        listener.alarmUnscheduled(alarmId, deleted, version);
+      }
+    });
+  }
+
+  private void notifySnoozed(final long alarmId) {
+    pendingAlarms.commit();
+    final long nextFire = pendingAlarms.pendingTime(alarmId).calendar().getTimeInMillis();
+    broadcast(new ScheduleEvent() {
+      @Override
+      public void send(ScheduleListener listener, long version) throws RemoteException {
+        listener.alarmSnoozed(alarmId, nextFire, version);
+      }
+    });
+  }
+
+  private void notifyFired(final long alarmId) {
+    broadcast(new ScheduleEvent() {
+      @Override
+      public void send(ScheduleListener listener, long version) throws RemoteException {
+        listener.alarmFired(alarmId, version);
+      }
+    });
   }
 
   // OnStart was depreciated in SDK 5.  It is here for backwards compatibility.
   // http://android-developers.blogspot.com/2010/02/service-api-changes-starting-with.html
   @Override
   public void onStart(Intent intent, int startId) {
-    handleStart(intent, startId);
+    postStart(intent, startId);
   }
 
   @Override
   public int onStartCommand(Intent intent, int flags, int startId) {
-    handleStart(intent, startId);
+    postStart(intent, startId);
     return START_STICKY;
   }
 
+  private void postStart(final Intent intent, final int startId) {
+    worker.post(new Runnable() {
+      @Override
+      public void run() {
+        handleStart(intent, startId);
+      }
+    });
+  }
+
   private void handleStart(Intent intent, int startId) {
     if (intent != null && intent.hasExtra(COMMAND_EXTRA)) {
       Bundle extras = intent.getExtras();
       int command = extras.getInt(COMMAND_EXTRA, COMMAND_UNKNOWN);
 
-      final Handler handler = new Handler();
-      final Runnable maybeShutdown = new Runnable() {
-        @Override
-        public void run() {
-          if (pendingAlarms.size() == 0) {
-            stopSelf();
-          }
-        }
-      };
-
       switch (command) {
         case COMMAND_NOTIFICATION_REFRESH:
           refreshNotification();
-          handler.post(maybeShutdown);
+          worker.post(maybeShutdown);
           break;
         case COMMAND_DEVICE_BOOT:
           fixPersistentSettings();
-          handler.post(maybeShutdown);
+          worker.post(maybeShutdown);
           break;
         case COMMAND_TIMEZONE_CHANGE:
           if (AppSettings.isDebugMode(getApplicationContext())) {
@@ -127,7 +249,10 @@ public final class AlarmClockService extends Service {
               Toast.makeText(getApplicationContext(), "ALARM " + alarmId, Toast.LENGTH_SHORT).show();
             }
           }
-          handler.post(maybeShutdown);
+          worker.post(maybeShutdown);
+          break;
+        case COMMAND_ALARM_FIRED:
+          notifyFired(AlarmUtil.alarmUriToId(intent.getData()));
           break;
         default:
           throw new IllegalArgumentException("Unknown service command.");
@@ -163,10 +288,7 @@ public final class AlarmClockService extends Service {
     }
 
     // Set the system alarm string for display on the lock screen.
-    String lockScreenText = AppSettings.lockScreenString(getApplicationContext(), nextTime);
-    if (lockScreenText != null) {
-      Settings.System.putString(getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED, lockScreenText);
-    }
+    lockScreen.publish(AppSettings.lockScreenString(getApplicationContext(), nextTime));
   }
 
   // This hack is necessary b/c I released a version of the code with a bunch
@@ -202,19 +324,27 @@ public final class AlarmClockService extends Service {
   @Override
   public void onDestroy() {
     super.onDestroy();
-    db.closeConnections();
+    // Clean up after any work which is still queued, then let the worker
+    // thread exit.
+    worker.post(new Runnable() {
+      @Override
+      public void run() {
+        db.closeConnections();
+        listeners.kill();
 
-    ReceiverNotificationRefresh.stopRefreshing(getApplicationContext());
+        ReceiverNotificationRefresh.stopRefreshing(getApplicationContext());
 
-    final NotificationManager manager =
-      (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
-    manager.cancel(NOTIFICATION_BAR_ID);
+        final NotificationManager manager =
+          (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.cancel(NOTIFICATION_BAR_ID);
 
-    String lockScreenText = AppSettings.lockScreenString(getApplicationContext(), null);
-    // Only clear the lock screen if the preference is set.
-    if (lockScreenText != null) {
-      Settings.System.putString(getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED, lockScreenText);
-    }
+        // Only clear the lock screen if the preference is set.  This also
+        // writes any text still held by the rate limit.
+        lockScreen.publishNow(AppSettings.lockScreenString(getApplicationContext(), null));
+
+        Looper.myLooper().quit();
+      }
+    });
   }
 
   @Override
@@ -227,16 +357,17 @@ public final class AlarmClockService extends Service {
     // Decide if we need to explicitly shut down this service. Normally,
     // the service would shutdown after the last un-bind, but it was explicitly
     // started in onBind(). If there are no pending alarms, explicitly stop
-    // the service.
-    if (pendingAlarms.size() == 0) {
-      stopSelf();
-      return false;
-    }
+    // the service.  This check must wait for any requests which are still
+    // queued on the worker thread.
+    worker.post(maybeShutdown);
     // Returning true causes the IBinder object to be re-used until the
     // service is actually shutdown.
     return true;
   }
 
+  // The remaining methods must be called on the worker thread, except for
+  // the read-only pendingAlarm(), pendingAlarmTimes() and pendingSchedule().
+
   public AlarmTime pendingAlarm(long alarmId) {
     return pendingAlarms.pendingTime(alarmId);
   }
@@ -245,6 +376,10 @@ public final class AlarmClockService extends Service {
     return pendingAlarms.pendingTimes();
   }
 
+  public PendingSchedule pendingSchedule(long knownVersion) {
+    return pendingAlarms.snapshot(knownVersion);
+  }
+
   public void createAlarm(AlarmTime time) {
     // Store the alarm in the persistent database.
     long alarmId = db.newAlarm(time);
@@ -254,6 +389,7 @@ public final class AlarmClockService extends Service {
   public void deleteAlarm(long alarmId) {
     pendingAlarms.remove(alarmId);
     db.deleteAlarm(alarmId);
+    notifyUnscheduled(alarmId, true);
   }
 
   public void deleteAllAlarms() {
@@ -272,6 +408,7 @@ public final class AlarmClockService extends Service {
 
     // Mark the alarm as enabled in the database.
     db.enableAlarm(alarmId, true);
+    notifyScheduled(alarmId);
 
     // Now that there is more than one pending alarm, explicitly start the
     // service so that it continues to run after binding.
@@ -282,18 +419,26 @@ public final class AlarmClockService extends Service {
   }
 
   public void acknowledgeAlarm(long alarmId) {
-    AlarmInfo info = db.readAlarmInfo(alarmId);
-    if (info == null) {
-      return;
-    }
+    acknowledgeAlarms(new long[] { alarmId });
+  }
 
-    pendingAlarms.remove(alarmId);
+  public void acknowledgeAlarms(long[] alarmIds) {
+    for (long alarmId : alarmIds) {
+      AlarmInfo info = db.readAlarmInfo(alarmId);
+      if (info == null) {
+        continue;
+      }
 
-    AlarmTime time = info.getTime();
-    if (time.repeats()) {
-      pendingAlarms.put(alarmId, time);
-    } else {
-      db.enableAlarm(alarmId, false);
+      pendingAlarms.remove(alarmId);
+
+      AlarmTime time = info.getTime();
+      if (time.repeats()) {
+        pendingAlarms.put(alarmId, time);
+        notifyScheduled(alarmId);
+      } else {
+        db.enableAlarm(alarmId, false);
+        notifyUnscheduled(alarmId, false);
+      }
     }
     refreshNotification();
   }
@@ -306,6 +451,7 @@ public final class AlarmClockService extends Service {
 
     pendingAlarms.remove(alarmId);
     db.enableAlarm(alarmId, false);
+    notifyUnscheduled(alarmId, false);
 
     refreshNotification();
   }
@@ -315,14 +461,20 @@ public final class AlarmClockService extends Service {
   }
 
   public void snoozeAlarmFor(long alarmId, int minutes) {
-    // Clear the snoozed alarm.
-    pendingAlarms.remove(alarmId);
+    snoozeAlarmsFor(new long[] { alarmId }, minutes);
+  }
 
+  public void snoozeAlarmsFor(long[] alarmIds, int minutes) {
     // Calculate the time for the next alarm.
     AlarmTime time = AlarmTime.snoozeInMillisUTC(minutes);
 
-    // Schedule it.
-    pendingAlarms.put(alarmId, time);
+    for (long alarmId : alarmIds) {
+      // Clear the snoozed alarm.
+      pendingAlarms.remove(alarmId);
+      // Schedule it.
+      pendingAlarms.put(alarmId, new AlarmTime(time));
+      notifySnoozed(alarmId);
+    }
     refreshNotification();
   }
 }
\ No newline at end of file
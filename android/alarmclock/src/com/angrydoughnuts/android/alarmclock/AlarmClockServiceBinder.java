@@ -15,7 +15,9 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -26,18 +28,23 @@ import android.os.RemoteException;
 /**
  * This class is a wrapper for the process of binding to the AlarmClockService.
  * It provides a seemingly synchronous semantic for the asynchronous binding
- * process.  If the service is not properly bound, a callback is created and
- * registered to be run as soon as binding successfully completes.  Call
- * bind() and unbind() to trigger these processes.
+ * process.  Requests made before binding completes are collected in a
+ * CommandBatch, where repeated requests for the same alarm collapse to the
+ * last one, and are sent in a single call as soon as binding completes.
+ * Call bind() and unbind() to trigger these processes.  Calls may be made
+ * from any thread.
  */
 public class AlarmClockServiceBinder {
   private Context context;
-  private AlarmClockInterface clock;
-  private LinkedList<ServiceCallback> callbacks;
+  private volatile AlarmClockInterface clock;
+  private CommandBatch deferred;
+  // Maps listener -> true to add it or false to remove it.
+  private LinkedHashMap<ScheduleListener, Boolean> deferredListeners;
 
   public AlarmClockServiceBinder(Context context) {
     this.context = context;
-    this.callbacks = new LinkedList<ServiceCallback>();
+    this.deferred = new CommandBatch();
+    this.deferredListeners = new LinkedHashMap<ScheduleListener, Boolean>();
   }
 
   public AlarmClockInterface clock() {
@@ -51,7 +58,7 @@ public class AlarmClockServiceBinder {
     }
   }
 
-  public void unbind() {
+  public synchronized void unbind() {
     context.unbindService(serviceConnection);
     clock = null;
   }
@@ -63,45 +70,73 @@ public class AlarmClockServiceBinder {
   final private ServiceConnection serviceConnection = new ServiceConnection() {
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
-      clock = AlarmClockInterface.Stub.asInterface(service);
-      while (callbacks.size() > 0) {
-        ServiceCallback callback = callbacks.remove();
+      synchronized (AlarmClockServiceBinder.this) {
+        // Clients in this process get the service's stub itself rather than
+        // a proxy, so calls are plain method calls and nothing is parceled.
+        // See BinderBenchmark.
+        clock = AlarmClockInterface.Stub.asInterface(service);
         try {
-          callback.run();
+          if (!deferred.isEmpty()) {
+            clock.applyBatch(deferred);
+          }
+          for (Map.Entry<ScheduleListener, Boolean> entry : deferredListeners.entrySet()) {
+            if (entry.getValue()) {
+              clock.addScheduleListener(entry.getKey());
+            } else {
+              clock.removeScheduleListener(entry.getKey());
+            }
+          }
         } catch (RemoteException e) {
           e.printStackTrace();
         }
+        deferred = new CommandBatch();
+        deferredListeners.clear();
       }
     }
     @Override
     public void onServiceDisconnected(ComponentName name) {
-      clock = null;
+      synchronized (AlarmClockServiceBinder.this) {
+        clock = null;
+      }
     }
   };
 
-  private void runOrDefer(ServiceCallback callback) {
-    if (clock != null) {
-      try {
-        callback.run();
-      } catch (RemoteException e) {
-        e.printStackTrace();
-      }
-    } else {
-      callbacks.offer(callback);
+  /**
+   * Runs the callback if the service is bound.
+   * @return false if it is not, in which case the caller should defer the
+   * request.  Callers must hold the lock on this object.
+   */
+  private boolean runIfBound(ServiceCallback callback) {
+    if (clock == null) {
+      return false;
+    }
+    try {
+      callback.run();
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
+    return true;
+  }
+
+  private void putOrRun(long alarmId, int command, int argument, ServiceCallback callback) {
+    if (!runIfBound(callback)) {
+      deferred.put(alarmId, command, argument);
     }
   }
 
-  public void createAlarm(final AlarmTime time) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void createAlarm(final AlarmTime time) {
+    if (!runIfBound(new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.createAlarm(time);
       }
-    });
+    })) {
+      deferred.create(time);
+    }
   }
 
-  public void deleteAlarm(final long alarmId) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void deleteAlarm(final long alarmId) {
+    putOrRun(alarmId, CommandBatch.DELETE, 0, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.deleteAlarm(alarmId);
@@ -109,17 +144,19 @@ public class AlarmClockServiceBinder {
     });
   }
 
-  public void deleteAllAlarms() {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void deleteAllAlarms() {
+    if (!runIfBound(new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.deleteAllAlarms();
       }
-    });
+    })) {
+      deferred.deleteAll();
+    }
   }
 
-  public void scheduleAlarm(final long alarmId) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void scheduleAlarm(final long alarmId) {
+    putOrRun(alarmId, CommandBatch.SCHEDULE, 0, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.scheduleAlarm(alarmId);
@@ -127,8 +164,8 @@ public class AlarmClockServiceBinder {
     });
   }
 
-  public void unscheduleAlarm(final long alarmId) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void unscheduleAlarm(final long alarmId) {
+    putOrRun(alarmId, CommandBatch.UNSCHEDULE, 0, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.unscheduleAlarm(alarmId);
@@ -136,8 +173,8 @@ public class AlarmClockServiceBinder {
     });
   }
 
-  public void acknowledgeAlarm(final long alarmId) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void acknowledgeAlarm(final long alarmId) {
+    putOrRun(alarmId, CommandBatch.ACKNOWLEDGE, 0, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.acknowledgeAlarm(alarmId);
@@ -145,8 +182,21 @@ public class AlarmClockServiceBinder {
     });
   }
 
-  public void snoozeAlarm(final long alarmId) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void acknowledgeAlarms(final long[] alarmIds) {
+    if (!runIfBound(new ServiceCallback() {
+      @Override
+      public void run() throws RemoteException {
+        clock.acknowledgeAlarms(alarmIds);
+      }
+    })) {
+      for (long alarmId : alarmIds) {
+        deferred.put(alarmId, CommandBatch.ACKNOWLEDGE, 0);
+      }
+    }
+  }
+
+  public synchronized void snoozeAlarm(final long alarmId) {
+    putOrRun(alarmId, CommandBatch.SNOOZE, CommandBatch.DEFAULT_SNOOZE, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.snoozeAlarm(alarmId);
@@ -154,12 +204,51 @@ public class AlarmClockServiceBinder {
     });
   }
 
-  public void snoozeAlarmFor(final long alarmId, final int minutes) {
-    runOrDefer(new ServiceCallback() {
+  public synchronized void snoozeAlarmFor(final long alarmId, final int minutes) {
+    putOrRun(alarmId, CommandBatch.SNOOZE, minutes, new ServiceCallback() {
       @Override
       public void run() throws RemoteException {
         clock.snoozeAlarmFor(alarmId, minutes);
       }
     });
   }
+
+  public synchronized void addScheduleListener(final ScheduleListener listener) {
+    if (!runIfBound(new ServiceCallback() {
+      @Override
+      public void run() throws RemoteException {
+        clock.addScheduleListener(listener);
+      }
+    })) {
+      deferredListeners.put(listener, true);
+    }
+  }
+
+  public synchronized void removeScheduleListener(final ScheduleListener listener) {
+    if (!runIfBound(new ServiceCallback() {
+      @Override
+      public void run() throws RemoteException {
+        clock.removeScheduleListener(listener);
+      }
+    })) {
+      // A listener which was never added doesn't need to be removed.
+      Boolean pending = deferredListeners.remove(listener);
+      if (pending == null || !pending) {
+        deferredListeners.put(listener, false);
+      }
+    }
+  }
+
+  public synchronized void snoozeAlarmsFor(final long[] alarmIds, final int minutes) {
+    if (!runIfBound(new ServiceCallback() {
+      @Override
+      public void run() throws RemoteException {
+        clock.snoozeAlarmsFor(alarmIds, minutes);
+      }
+    })) {
+      for (long alarmId : alarmIds) {
+        deferred.put(alarmId, CommandBatch.SNOOZE, minutes);
+      }
+    }
+  }
 }
@@ -17,8 +17,6 @@ package com.angrydoughnuts.android.alarmclock;
 
 import java.util.Calendar;
 
-import com.angrydoughnuts.android.alarmclock.Week.Day;
-
 import android.content.ContentValues;
 import android.database.Cursor;
 
@@ -70,12 +68,25 @@ public final class AlarmInfo {
       && name.equals(rhs.name);
   }
 
+  /**
+   * @return true if the current row of the cursor holds the same values as
+   * this alarm.  Unlike equals(), this does not depend on when the next
+   * occurrence of the time falls and doesn't build a new AlarmTime.
+   */
+  public boolean matches(Cursor cursor) {
+    return alarmId == cursor.getLong(cursor.getColumnIndex(DbHelper.ALARMS_COL__ID))
+      && enabled == (cursor.getInt(cursor.getColumnIndex(DbHelper.ALARMS_COL_ENABLED)) == 1)
+      && name.equals(cursor.getString(cursor.getColumnIndex(DbHelper.ALARMS_COL_NAME)))
+      && TimeToInteger(time) == cursor.getInt(cursor.getColumnIndex(DbHelper.ALARMS_COL_TIME))
+      && time.getDaysOfWeek().toBits() == cursor.getInt(cursor.getColumnIndex(DbHelper.ALARMS_COL_DAY_OF_WEEK));
+  }
+
   public ContentValues contentValues() {
     ContentValues values = new ContentValues();
     values.put(DbHelper.ALARMS_COL_TIME, TimeToInteger(time));
     values.put(DbHelper.ALARMS_COL_ENABLED, enabled);
     values.put(DbHelper.ALARMS_COL_NAME, name);
-    values.put(DbHelper.ALARMS_COL_DAY_OF_WEEK, WeekToInteger(time));
+    values.put(DbHelper.ALARMS_COL_DAY_OF_WEEK, time.getDaysOfWeek().toBits());
     return values;
   }
 
@@ -125,29 +136,11 @@ public final class AlarmInfo {
     return hourOfDay * 3600 + minute * 60 + second;
   }
 
-  private static int WeekToInteger(AlarmTime time) {
-    boolean[] bitmask = time.getDaysOfWeek().bitmask();
-    int dowBitmask = 0;
-    for (Day day: Day.values()) {
-      if (bitmask[day.ordinal()]) {
-        dowBitmask |= 1 << day.ordinal();
-      }
-    }
-    return dowBitmask;
-  }
-
   private static AlarmTime BuildAlarmTime(int secondsAfterMidnight, int dowBitmask) {
     int hours = secondsAfterMidnight % 3600;
     int minutes = (secondsAfterMidnight - (hours * 3600)) % 60;
     int seconds = (secondsAfterMidnight- (hours * 3600 + minutes * 60));
 
-    Week week = new Week();
-    for (Day day : Day.values()) {
-      if ((dowBitmask & 1 << day.ordinal()) > 0) {
-        week.addDay(day);
-      }
-    }
-
-    return new AlarmTime(hours, minutes, seconds, week);
+    return new AlarmTime(hours, minutes, seconds, new Week(dowBitmask));
   }
 }
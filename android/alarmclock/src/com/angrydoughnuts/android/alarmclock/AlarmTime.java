@@ -15,7 +15,6 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
-import java.text.SimpleDateFormat;
 import java.util.Calendar;
 
 import com.angrydoughnuts.android.alarmclock.Week.Day;
@@ -23,7 +22,6 @@ import com.angrydoughnuts.android.alarmclock.Week.Day;
 import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.text.format.DateFormat;
 
 /**
  * A class that encapsulates an alarm time.  It represents a time between 00:00
@@ -75,6 +73,18 @@ public final class AlarmTime implements Parcelable, Comparable<AlarmTime> {
     findNextOccurrence();
   }
 
+  /**
+   * Construct an AlarmTime for an instant which has already been scheduled,
+   * such as one reported by PendingSchedule.  No rounding is done.
+   * @param timeInMillis
+   * @param daysOfWeek
+   */
+  public AlarmTime(long timeInMillis, Week daysOfWeek) {
+    this.calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(timeInMillis);
+    this.daysOfWeek = daysOfWeek;
+  }
+
   public void makeOlder(int seconds) {
     this.calendar.add(Calendar.SECOND, seconds);
   }
@@ -131,20 +141,7 @@ public final class AlarmTime implements Parcelable, Comparable<AlarmTime> {
   }
 
   public String localizedString(Context context) {
-    boolean is24HourFormat = DateFormat.is24HourFormat(context);
-    String format = "";
-    String second = "";
-    if (AppSettings.isDebugMode(context)) {
-      second = ".ss";
-    }
-    if (is24HourFormat) {
-      format = "HH:mm" + second;
-    } else {
-      format = "h:mm" + second + " aaa";
-    }
-
-    SimpleDateFormat formatter = new SimpleDateFormat(format);
-    return formatter.format(calendar.getTime());
+    return TimeLabels.get(context).label(calendar);
   }
 
   public Calendar calendar() {
@@ -160,35 +157,7 @@ public final class AlarmTime implements Parcelable, Comparable<AlarmTime> {
   }
 
   public String timeUntilString(Context c) {
-    Calendar now = Calendar.getInstance();
-    if (calendar.before(now)) {
-      return c.getString(R.string.alarm_has_occurred);
-    }
-    long now_min = now.getTimeInMillis() / 1000 / 60;
-    long then_min = calendar.getTimeInMillis() / 1000 / 60;
-    long difference_minutes = then_min - now_min;
-    long days = difference_minutes / (60 * 24);
-    long hours = difference_minutes % (60 * 24);
-    long minutes = hours % 60;
-    hours = hours / 60;
-
-    String value = "";
-    if (days == 1) {
-      value += c.getString(R.string.day, days) + " ";
-    } else if (days > 1) {
-      value += c.getString(R.string.days, days) + " ";
-    }
-    if (hours == 1) {
-      value += c.getString(R.string.hour, hours) + " ";
-    } else if (hours > 1) {
-      value += c.getString(R.string.hours, hours) + " ";
-    }
-    if (minutes == 1) {
-      value += c.getString(R.string.minute, minutes) + " ";
-    } else if (minutes > 1) {
-      value += c.getString(R.string.minutes, minutes) + " ";
-    }
-    return value;
+    return CountdownText.get(c).timeUntil(calendar.getTimeInMillis());
   }
 
   /**
@@ -208,15 +177,56 @@ public final class AlarmTime implements Parcelable, Comparable<AlarmTime> {
         snooze.get(Calendar.SECOND));
   }
 
+  // The parcel form is the alarm instant in millis followed by a single int
+  // holding the wire version in its high half and the Week bits in its low
+  // half.  This replaces Java serialization of the Calendar, which was
+  // several hundred bytes per AlarmTime and needed reflection to read back.
+  // Both ends of the binder are always this package, so the reader's
+  // default time zone is the writer's.
+  private static final int WIRE_VERSION = 1;
+  private static final int WIRE_DAYS_MASK = 0xffff;
+
   private AlarmTime(Parcel source) {
-    this.calendar = (Calendar) source.readSerializable();
-    this.daysOfWeek = source.readParcelable(null);
+    long timeInMillis = source.readLong();
+    int packed = source.readInt();
+    int version = packed >>> 16;
+    if (version != WIRE_VERSION) {
+      throw new IllegalArgumentException("Unknown AlarmTime wire version: " + version);
+    }
+    this.calendar = Calendar.getInstance();
+    calendar.setTimeInMillis(timeInMillis);
+    this.daysOfWeek = new Week(packed & WIRE_DAYS_MASK);
   }
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeSerializable(calendar);
-    dest.writeParcelable(daysOfWeek, 0);
+    dest.writeLong(calendar.getTimeInMillis());
+    dest.writeInt((WIRE_VERSION << 16) | daysOfWeek.toBits());
+  }
+
+  /**
+   * A debugging summary comparing the size of these times on the wire with
+   * the serialized Calendar encoding that was used previously.
+   */
+  static String wireSizeString(AlarmTime[] times) {
+    Parcel compact = Parcel.obtain();
+    Parcel serialized = Parcel.obtain();
+    try {
+      compact.writeTypedArray(times, 0);
+      serialized.writeInt(times.length);
+      for (AlarmTime time : times) {
+        serialized.writeInt(1);
+        serialized.writeSerializable(time.calendar);
+        // Week used to be written as a named Parcelable holding a boolean[].
+        serialized.writeString(Week.class.getName());
+        serialized.writeBooleanArray(time.daysOfWeek.bitmask());
+      }
+      return times.length + " times, " + compact.dataSize() + " bytes (was "
+        + serialized.dataSize() + " bytes)";
+    } finally {
+      compact.recycle();
+      serialized.recycle();
+    }
   }
 
   public static final Parcelable.Creator<AlarmTime> CREATOR =
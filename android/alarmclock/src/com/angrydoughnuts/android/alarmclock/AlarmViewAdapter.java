@@ -15,11 +15,13 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import android.app.Activity;
 import android.content.Context;
 import android.database.Cursor;
+import android.os.AsyncTask;
 import android.os.RemoteException;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -27,87 +29,391 @@ import android.view.ViewGroup;
 import android.view.View.OnClickListener;
 import android.widget.ArrayAdapter;
 import android.widget.CheckBox;
+import android.widget.ListView;
 import android.widget.TextView;
 
 /**
  * This adapter is used to query the alarm database and translate each alarm
- * into a view which is displayed in a ListView.
+ * into a view which is displayed in a ListView.  Row views are recycled and
+ * only the text which actually changed is set again.
  */
 public final class AlarmViewAdapter extends ArrayAdapter<AlarmInfo> {
   private AlarmClockServiceBinder service;
   private LayoutInflater inflater;
-  private Cursor cursor;
+  private ListView list;
+  // Maps alarmId -> the AlarmInfo displayed for it.
+  private HashMap<Long, AlarmInfo> alarms;
+  // The last schedule fetched from the service and whether it may be out of
+  // date.  Rows are drawn from this copy rather than one call per row.
+  private PendingSchedule schedule;
+  private boolean scheduleStale = true;
 
-  public AlarmViewAdapter(Activity activity, DbAccessor db, AlarmClockServiceBinder service) {
-    super(activity, 0, new LinkedList<AlarmInfo>());
+  // The database is opened by the first load, off the UI thread.  It is
+  // closed by close(), or by the last load still running at that point.
+  private DbAccessor db;
+  private Loader loader;
+  private Runnable loadListener;
+  // Guarded by this.
+  private int loadsRunning;
+  private boolean closed;
+
+  public AlarmViewAdapter(Activity activity, AlarmClockServiceBinder service, ListView list) {
+    super(activity, 0, new ArrayList<AlarmInfo>());
+    // Changes are announced explicitly, and only when something changed.
+    setNotifyOnChange(false);
     this.service = service;
     this.inflater = (LayoutInflater) activity.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-    this.cursor = db.readAlarmInfo();
-    activity.startManagingCursor(cursor);
-    loadData();
+    this.list = list;
+    this.alarms = new HashMap<Long, AlarmInfo>();
+  }
+
+  /**
+   * Called on the UI thread each time a load has been applied.
+   */
+  public void setLoadListener(Runnable listener) {
+    loadListener = listener;
   }
 
-  private void loadData() {
-    while (cursor.moveToNext()) {
-      add(new AlarmInfo(cursor));
+  /**
+   * Brings the list up to date with the database in the background.
+   * Alarms which haven't changed keep their existing AlarmInfo, only new or
+   * modified rows are built from the cursor, and the list is only redrawn if
+   * the result differs from what is displayed.
+   */
+  public void reload() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      loadsRunning++;
     }
+    loader = new Loader(new HashMap<Long, AlarmInfo>(alarms));
+    loader.execute();
   }
 
-  public void requery() {
+  /**
+   * Closes the database once no load is using it.
+   */
+  public synchronized void close() {
+    closed = true;
+    if (loadsRunning == 0 && db != null) {
+      db.closeConnections();
+    }
+  }
+
+  /**
+   * @return a copy of the alarms currently displayed, ie, to be retained
+   * across a configuration change and handed to setAlarms().
+   */
+  public ArrayList<AlarmInfo> alarms() {
+    ArrayList<AlarmInfo> copy = new ArrayList<AlarmInfo>(getCount());
+    for (int i = 0; i < getCount(); ++i) {
+      copy.add(getItem(i));
+    }
+    return copy;
+  }
+
+  /**
+   * Displays the given alarms, reusing rows which are already displayed.
+   */
+  public void setAlarms(ArrayList<AlarmInfo> latest) {
+    boolean changed = latest.size() != getCount();
+    for (int i = 0; !changed && i < latest.size(); ++i) {
+      changed = getItem(i) != latest.get(i);
+    }
+    if (!changed) {
+      return;
+    }
+    alarms.clear();
     clear();
-    cursor.requery();
-    loadData();
+    for (AlarmInfo info : latest) {
+      alarms.put(info.getAlarmId(), info);
+      add(info);
+    }
     notifyDataSetChanged();
   }
 
+  private final class Loader extends AsyncTask<Void, Void, ArrayList<AlarmInfo>> {
+    private final HashMap<Long, AlarmInfo> known;
+
+    Loader(HashMap<Long, AlarmInfo> known) {
+      this.known = known;
+    }
+
+    @Override
+    protected ArrayList<AlarmInfo> doInBackground(Void... params) {
+      try {
+        synchronized (AlarmViewAdapter.this) {
+          if (db == null) {
+            db = new DbAccessor(getContext().getApplicationContext());
+          }
+        }
+        Cursor cursor = db.readAlarmInfo();
+        int idColumn = cursor.getColumnIndex(DbHelper.ALARMS_COL__ID);
+        ArrayList<AlarmInfo> latest = new ArrayList<AlarmInfo>(cursor.getCount());
+        while (cursor.moveToNext()) {
+          AlarmInfo info = known.get(cursor.getLong(idColumn));
+          if (info == null || !info.matches(cursor)) {
+            info = new AlarmInfo(cursor);
+          }
+          latest.add(info);
+        }
+        cursor.close();
+        return latest;
+      } finally {
+        synchronized (AlarmViewAdapter.this) {
+          loadsRunning--;
+          if (closed && loadsRunning == 0 && db != null) {
+            db.closeConnections();
+          }
+        }
+      }
+    }
+
+    @Override
+    protected void onPostExecute(ArrayList<AlarmInfo> latest) {
+      // Only the most recent load is applied.
+      if (latest == null || loader != this || closed) {
+        return;
+      }
+      loader = null;
+      setAlarms(latest);
+      if (loadListener != null) {
+        loadListener.run();
+      }
+    }
+  }
+
+  // The following are called on the UI thread for each change reported by
+  // the service's ScheduleListener.  Only the affected row is updated.
+
+  public void alarmScheduled(long alarmId, long nextFire, long version) {
+    boolean rowOnly = applyChange(alarmId, nextFire, version);
+    AlarmInfo info = alarms.get(alarmId);
+    if (info == null) {
+      // This is a new alarm; read it from the database.
+      reload();
+      return;
+    }
+    info.setEnabled(true);
+    redraw(info, rowOnly);
+  }
+
+  public void alarmUnscheduled(long alarmId, boolean deleted, long version) {
+    boolean rowOnly = applyChange(alarmId, -1, version);
+    AlarmInfo info = alarms.get(alarmId);
+    if (info == null) {
+      return;
+    }
+    if (deleted) {
+      alarms.remove(alarmId);
+      remove(info);
+      notifyDataSetChanged();
+    } else {
+      info.setEnabled(false);
+      redraw(info, rowOnly);
+    }
+  }
+
+  public void alarmSnoozed(long alarmId, long nextFire, long version) {
+    boolean rowOnly = applyChange(alarmId, nextFire, version);
+    AlarmInfo info = alarms.get(alarmId);
+    if (info != null) {
+      redraw(info, rowOnly);
+    }
+  }
+
+  public void alarmFired(long alarmId, long version) {
+    AlarmInfo info = alarms.get(alarmId);
+    if (info != null) {
+      redraw(info, true);
+    }
+  }
+
+  /**
+   * @return true if only the changed alarm's row needs to be redrawn, or
+   * false if the whole schedule will be fetched again.
+   */
+  private boolean applyChange(long alarmId, long nextFire, long version) {
+    if (schedule == null || scheduleStale) {
+      // A complete copy will be fetched on the next draw anyway.
+      scheduleStale = true;
+      return false;
+    }
+    // A change already included in our copy is skipped.  Versions are only
+    // compared for equality: after a service restart they start from an
+    // unrelated value.
+    if (version == schedule.version()) {
+      return true;
+    }
+    // The service commits one version per event, so anything but the next
+    // version means an event was missed; fetch the whole schedule instead.
+    if (version != schedule.version() + 1) {
+      scheduleStale = true;
+      return false;
+    }
+    schedule = schedule.with(alarmId, nextFire, version);
+    return true;
+  }
+
+  private void redraw(AlarmInfo info, boolean rowOnly) {
+    if (!rowOnly) {
+      notifyDataSetChanged();
+      return;
+    }
+    // Rebind the row in place if it is visible.  Otherwise it will be bound
+    // when it is scrolled into view.
+    int first = list.getFirstVisiblePosition();
+    for (int i = 0; i < list.getChildCount(); ++i) {
+      int position = first + i;
+      if (position < getCount() && getItem(position) == info) {
+        getView(position, list.getChildAt(i), list);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Forces the schedule to be checked on the next draw, ie, after the
+   * owning activity has been paused and may have missed a change.
+   */
+  public void invalidateSchedule() {
+    scheduleStale = true;
+  }
+
+  private void refreshSchedule() {
+    if (!scheduleStale || service.clock() == null) {
+      return;
+    }
+    try {
+      PendingSchedule latest =
+        service.clock().pendingSchedule(schedule == null ? -1 : schedule.version());
+      // Null means our copy is still current.
+      if (latest != null) {
+        schedule = latest;
+      }
+      scheduleStale = false;
+    } catch (RemoteException e) {}
+  }
+
   @Override
   public View getView(int position, View convertView, ViewGroup parent) {
-    View view = inflater.inflate(R.layout.alarm_list_item, null);
-    TextView timeView = (TextView) view.findViewById(R.id.alarm_time);
-    TextView nextView = (TextView) view.findViewById(R.id.next_alarm);
-    TextView labelView = (TextView) view.findViewById(R.id.alarm_label);
-    TextView repeatView = (TextView) view.findViewById(R.id.alarm_repeat);
-    CheckBox enabledView = (CheckBox) view.findViewById(R.id.alarm_enabled);
+    RowViews row;
+    if (convertView == null) {
+      convertView = inflater.inflate(R.layout.alarm_list_item, null);
+      row = new RowViews(convertView);
+      row.enabled.setOnClickListener(enabledListener);
+      convertView.setTag(row);
+    } else {
+      row = (RowViews) convertView.getTag();
+    }
 
     final AlarmInfo info = getItem(position);
 
-    AlarmTime time = null;
     // See if there is an instance of this alarm scheduled.
-    if (service.clock() != null) {
-      try {
-        time = service.clock().pendingAlarm(info.getAlarmId());
-      } catch (RemoteException e) {}
-    }
-    // If we couldn't find a pending alarm, display the configured time.
-    if (time == null) {
-      time = info.getTime();
-    }
-    String timeStr = time.localizedString(getContext());
-    String alarmId = "";
-    if (AppSettings.isDebugMode(getContext())) {
-      alarmId = " [" + info.getAlarmId() + "]";
-    }
-    timeView.setText(timeStr + alarmId);
-    enabledView.setChecked(info.enabled());
-
-    nextView.setText(time.timeUntilString(getContext()));
-    labelView.setText(info.getName());
-    if (!info.getTime().getDaysOfWeek().equals(Week.NO_REPEATS)) {
-      repeatView.setText(info.getTime().getDaysOfWeek().toString(getContext()));
-    }
-    enabledView.setOnClickListener(new OnClickListener() {
-      @Override
-      public void onClick(View v) {
-        CheckBox check = (CheckBox) v;
-        if (check.isChecked()) {
-          service.scheduleAlarm(info.getAlarmId());
-          requery();
-        } else {
-          service.unscheduleAlarm(info.getAlarmId());
-          requery();
-        }
+    refreshSchedule();
+    long nextFire = schedule == null ? -1 : schedule.nextFire(info.getAlarmId());
+    boolean debug = AppSettings.isDebugMode(getContext());
+
+    // The display strings only need to be rebuilt when this row shows a
+    // different alarm (or a re-read copy of it) or the alarm was rescheduled.
+    if (row.info != info || row.nextFire != nextFire || row.debug != debug) {
+      row.info = info;
+      row.nextFire = nextFire;
+      row.debug = debug;
+      // If we couldn't find a pending alarm, display the configured time.
+      if (nextFire >= 0) {
+        row.shownTime = new AlarmTime(nextFire, info.getTime().getDaysOfWeek());
+      } else {
+        row.shownTime = info.getTime();
+      }
+      String timeStr = row.shownTime.localizedString(getContext());
+      if (debug) {
+        timeStr += " [" + info.getAlarmId() + "]";
+      }
+      row.time.setText(timeStr);
+      row.label.setText(info.getName());
+      if (!info.getTime().getDaysOfWeek().equals(Week.NO_REPEATS)) {
+        row.repeat.setText(info.getTime().getDaysOfWeek().toString(getContext()));
+      } else {
+        row.repeat.setText("");
+      }
+    }
+
+    String next = row.shownTime.timeUntilString(getContext());
+    if (!next.equals(row.next.getText().toString())) {
+      row.next.setText(next);
+    }
+    row.enabled.setChecked(info.enabled());
+    row.enabled.setTag(info);
+    return convertView;
+  }
+
+  /**
+   * Updates the "time until" text of the rows which are currently visible in
+   * the list, which is all that changes from one clock tick to the next.
+   * Rows whose text is unchanged are not touched, so a tick usually causes
+   * no layout at all.
+   */
+  public void refreshCountdowns() {
+    // A schedule which still needs fetching may change the times as well.
+    if (scheduleStale && service.clock() != null) {
+      notifyDataSetChanged();
+      return;
+    }
+    for (int i = 0; i < list.getChildCount(); ++i) {
+      Object tag = list.getChildAt(i).getTag();
+      if (!(tag instanceof RowViews)) {
+        continue;
       }
-    });
-    return view;
+      RowViews row = (RowViews) tag;
+      if (row.shownTime == null) {
+        continue;
+      }
+      String next = row.shownTime.timeUntilString(getContext());
+      if (!next.equals(row.next.getText().toString())) {
+        row.next.setText(next);
+      }
+    }
+  }
+
+  // Shared by the check boxes of every row.  Each box is tagged with the
+  // alarm it currently shows.
+  private final OnClickListener enabledListener = new OnClickListener() {
+    @Override
+    public void onClick(View v) {
+      CheckBox check = (CheckBox) v;
+      AlarmInfo info = (AlarmInfo) check.getTag();
+      // The row is redrawn once the service reports the change.
+      info.setEnabled(check.isChecked());
+      if (check.isChecked()) {
+        service.scheduleAlarm(info.getAlarmId());
+      } else {
+        service.unscheduleAlarm(info.getAlarmId());
+      }
+    }
+  };
+
+  /**
+   * The child views of a recycled row and what they currently display.
+   */
+  private static final class RowViews {
+    final TextView time;
+    final TextView next;
+    final TextView label;
+    final TextView repeat;
+    final CheckBox enabled;
+    AlarmInfo info;
+    long nextFire;
+    boolean debug;
+    AlarmTime shownTime;
+
+    RowViews(View view) {
+      time = (TextView) view.findViewById(R.id.alarm_time);
+      next = (TextView) view.findViewById(R.id.next_alarm);
+      label = (TextView) view.findViewById(R.id.alarm_label);
+      repeat = (TextView) view.findViewById(R.id.alarm_repeat);
+      enabled = (CheckBox) view.findViewById(R.id.alarm_enabled);
+    }
   }
 }
@@ -17,11 +17,14 @@ package com.angrydoughnuts.android.alarmclock;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.ApplicationInfo;
 import android.preference.PreferenceManager;
 
 /**
  * Utility class for accessing each of the global application settings.
+ * Settings are read once into an immutable snapshot, which is replaced
+ * whenever a preference changes, so each accessor is a field read.
  */
 public final class AppSettings {
   // Some of these have an extra " in them because of an old copy/paste bug.
@@ -32,40 +35,37 @@ public final class AppSettings {
   public static final String CUSTOM_LOCK_SCREEN_TEXT = "CUSTOM_LOCK_SCREEN";
   public static final String CUSTOM_LOCK_SCREEN_PERSISTENT = "CUSTOM_LOCK_PERSISTENT";
   public static final String ALARM_TIMEOUT = "ALARM_TIMEOUT";
-
-  public static final boolean displayNotificationIcon(Context c) {
-    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-    return prefs.getBoolean(NOTIFICATION_ICON, true);
-  }
+  public static final String COALESCE_WINDOW = "COALESCE_WINDOW";
 
   private static final String FORMAT_COUNTDOWN = "%c";
   private static final String FORMAT_TIME = "%t";
   private static final String FORMAT_BOTH = "%c (%t)";
+
+  // The current settings.  Replaced as a whole whenever a preference changes.
+  private static volatile Snapshot snapshot;
+  // A strong reference, since SharedPreferences only keeps weak ones.
+  private static OnSharedPreferenceChangeListener listener;
+
+  public static final boolean displayNotificationIcon(Context c) {
+    return snapshot(c).notificationIcon;
+  }
+
   public static final String lockScreenString(Context c, AlarmTime nextTime) {
-    final String[] values = c.getResources().getStringArray(R.array.lock_screen_values);
-    final String LOCK_SCREEN_COUNTDOWN = values[0];
-    final String LOCK_SCREEN_TIME = values[1];
-    final String LOCK_SCREEN_BOTH = values[2];
-    final String LOCK_SCREEN_NOTHING = values[3];
-    final String LOCK_SCREEN_CUSTOM = values[4];
-
-    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-    final String value = prefs.getString(LOCK_SCREEN, LOCK_SCREEN_COUNTDOWN);
-    final String customFormat = prefs.getString(CUSTOM_LOCK_SCREEN_TEXT, FORMAT_COUNTDOWN);
-    // The lock screen message should be persistent iff the persistent setting
-    // is set AND a custom lock screen message is set.
-    final boolean persistent = prefs.getBoolean(CUSTOM_LOCK_SCREEN_PERSISTENT, false) && value.equals(LOCK_SCREEN_CUSTOM);
-
-    if (value.equals(LOCK_SCREEN_NOTHING)) {
+    final Snapshot settings = snapshot(c);
+    if (settings.lockScreenFormat == null && settings.unknownLockScreen == null) {
       return null;
     }
 
     // If no alarm is set and our lock message is not persistent, return
     // a clearing string.
-    if (nextTime == null && !persistent) {
+    if (nextTime == null && !settings.lockScreenPersistent) {
       return "";
     }
 
+    if (settings.unknownLockScreen != null) {
+      throw new IllegalStateException("Unknown lockscreen preference: " + settings.unknownLockScreen);
+    }
+
     String time = "";
     String countdown = "";
     if (nextTime != null) {
@@ -73,65 +73,150 @@ public final class AppSettings {
       countdown = nextTime.timeUntilString(c);
     }
 
-    String text;
-    if (value.equals(LOCK_SCREEN_COUNTDOWN)) {
-      text = FORMAT_COUNTDOWN;
-    } else if (value.equals(LOCK_SCREEN_TIME)) {
-      text = FORMAT_TIME;
-    } else if (value.equals(LOCK_SCREEN_BOTH)) {
-      text = FORMAT_BOTH;
-    } else if (value.equals(LOCK_SCREEN_CUSTOM)) {
-      text = customFormat;
-    } else {
-      throw new IllegalStateException("Unknown lockscreen preference: " + value);
-    }
-
+    String text = settings.lockScreenFormat;
     text = text.replace("%t", time);
     text = text.replace("%c", countdown);
     return text;
   }
 
   public static final boolean isDebugMode(Context c) {
-    final String[] values = c.getResources().getStringArray(R.array.debug_values);
-    final String DEBUG_DEFAULT = values[0];
-    final String DEBUG_ON = values[1];
-    final String DEBUG_OFF = values[2];
-
-    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-    final String value = prefs.getString(DEBUG_MODE, DEBUG_DEFAULT);
-    if (value.equals(DEBUG_ON)) {
-      return true;
-    } else if (value.equals(DEBUG_OFF)) {
-      return false;
-    } else if (value.equals(DEBUG_DEFAULT)) {
-      return (c.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) > 0;
-    } else {
-      throw new IllegalStateException("Unknown debug mode setting: "+ value);
+    final Snapshot settings = snapshot(c);
+    if (settings.unknownDebugMode != null) {
+      throw new IllegalStateException("Unknown debug mode setting: "+ settings.unknownDebugMode);
     }
+    return settings.debugMode;
   }
 
   public static final int alarmTimeOutMins(Context c) {
-    final String[] values = c.getResources().getStringArray(R.array.time_out_values);
-    final String ONE_MIN = values[0];
-    final String FIVE_MIN = values[1];
-    final String TEN_MIN = values[2];
-    final String THIRTY_MIN = values[3];
-    final String SIXTY_MIN = values[4];
-
-    final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(c);
-    final String value = prefs.getString(ALARM_TIMEOUT, TEN_MIN);
-    if (value.equals(ONE_MIN)) {
-      return 1;
-    } else if (value.equals(FIVE_MIN)) {
-      return 5;
-    } else if (value.equals(TEN_MIN)) {
-      return 10;
-    } else if (value.equals(THIRTY_MIN)) {
-      return 30;
-    } else if (value.equals(SIXTY_MIN)) {
-      return 60;
-    } else {
-      return 10;
+    return snapshot(c).alarmTimeOutMins;
+  }
+
+  public static final int coalesceWindowSecs(Context c) {
+    return snapshot(c).coalesceWindowSecs;
+  }
+
+  private static Snapshot snapshot(Context c) {
+    final Snapshot current = snapshot;
+    if (current != null) {
+      return current;
+    }
+    synchronized (AppSettings.class) {
+      if (snapshot == null) {
+        final Context context = c.getApplicationContext();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        listener = new OnSharedPreferenceChangeListener() {
+          @Override
+          public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+            snapshot = new Snapshot(context, prefs);
+          }
+        };
+        prefs.registerOnSharedPreferenceChangeListener(listener);
+        snapshot = new Snapshot(context, prefs);
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * An immutable copy of every setting, with the preference values already
+   * resolved against their resource arrays.  Unknown values are recorded
+   * rather than thrown here, so that they are reported by the accessor, as
+   * before.
+   */
+  private static final class Snapshot {
+    final boolean debugMode;
+    final String unknownDebugMode;
+    final boolean notificationIcon;
+    // Null if nothing should be displayed.
+    final String lockScreenFormat;
+    final boolean lockScreenPersistent;
+    final String unknownLockScreen;
+    final int alarmTimeOutMins;
+    final int coalesceWindowSecs;
+
+    Snapshot(Context c, SharedPreferences prefs) {
+      notificationIcon = prefs.getBoolean(NOTIFICATION_ICON, true);
+
+      final String[] debugValues = c.getResources().getStringArray(R.array.debug_values);
+      final String DEBUG_DEFAULT = debugValues[0];
+      final String DEBUG_ON = debugValues[1];
+      final String DEBUG_OFF = debugValues[2];
+      final String debug = prefs.getString(DEBUG_MODE, DEBUG_DEFAULT);
+      String unknownDebug = null;
+      if (debug.equals(DEBUG_ON)) {
+        debugMode = true;
+      } else if (debug.equals(DEBUG_OFF)) {
+        debugMode = false;
+      } else if (debug.equals(DEBUG_DEFAULT)) {
+        debugMode = (c.getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) > 0;
+      } else {
+        debugMode = false;
+        unknownDebug = debug;
+      }
+      unknownDebugMode = unknownDebug;
+
+      final String[] lockValues = c.getResources().getStringArray(R.array.lock_screen_values);
+      final String LOCK_SCREEN_COUNTDOWN = lockValues[0];
+      final String LOCK_SCREEN_TIME = lockValues[1];
+      final String LOCK_SCREEN_BOTH = lockValues[2];
+      final String LOCK_SCREEN_NOTHING = lockValues[3];
+      final String LOCK_SCREEN_CUSTOM = lockValues[4];
+      final String lock = prefs.getString(LOCK_SCREEN, LOCK_SCREEN_COUNTDOWN);
+      // The lock screen message should be persistent iff the persistent setting
+      // is set AND a custom lock screen message is set.
+      lockScreenPersistent = prefs.getBoolean(CUSTOM_LOCK_SCREEN_PERSISTENT, false) && lock.equals(LOCK_SCREEN_CUSTOM);
+      String unknownLock = null;
+      if (lock.equals(LOCK_SCREEN_NOTHING)) {
+        lockScreenFormat = null;
+      } else if (lock.equals(LOCK_SCREEN_COUNTDOWN)) {
+        lockScreenFormat = FORMAT_COUNTDOWN;
+      } else if (lock.equals(LOCK_SCREEN_TIME)) {
+        lockScreenFormat = FORMAT_TIME;
+      } else if (lock.equals(LOCK_SCREEN_BOTH)) {
+        lockScreenFormat = FORMAT_BOTH;
+      } else if (lock.equals(LOCK_SCREEN_CUSTOM)) {
+        lockScreenFormat = prefs.getString(CUSTOM_LOCK_SCREEN_TEXT, FORMAT_COUNTDOWN);
+      } else {
+        lockScreenFormat = null;
+        unknownLock = lock;
+      }
+      unknownLockScreen = unknownLock;
+
+      final String[] timeOutValues = c.getResources().getStringArray(R.array.time_out_values);
+      final String ONE_MIN = timeOutValues[0];
+      final String FIVE_MIN = timeOutValues[1];
+      final String TEN_MIN = timeOutValues[2];
+      final String THIRTY_MIN = timeOutValues[3];
+      final String SIXTY_MIN = timeOutValues[4];
+      final String timeOut = prefs.getString(ALARM_TIMEOUT, TEN_MIN);
+      if (timeOut.equals(ONE_MIN)) {
+        alarmTimeOutMins = 1;
+      } else if (timeOut.equals(FIVE_MIN)) {
+        alarmTimeOutMins = 5;
+      } else if (timeOut.equals(TEN_MIN)) {
+        alarmTimeOutMins = 10;
+      } else if (timeOut.equals(THIRTY_MIN)) {
+        alarmTimeOutMins = 30;
+      } else if (timeOut.equals(SIXTY_MIN)) {
+        alarmTimeOutMins = 60;
+      } else {
+        alarmTimeOutMins = 10;
+      }
+
+      final String[] coalesceValues = c.getResources().getStringArray(R.array.coalesce_window_values);
+      final String NONE = coalesceValues[0];
+      final String WINDOW_ONE_MIN = coalesceValues[1];
+      final String WINDOW_FIVE_MIN = coalesceValues[2];
+      final String window = prefs.getString(COALESCE_WINDOW, WINDOW_ONE_MIN);
+      if (window.equals(NONE)) {
+        coalesceWindowSecs = 0;
+      } else if (window.equals(WINDOW_ONE_MIN)) {
+        coalesceWindowSecs = 60;
+      } else if (window.equals(WINDOW_FIVE_MIN)) {
+        coalesceWindowSecs = 300;
+      } else {
+        coalesceWindowSecs = 60;
+      }
     }
   }
 }
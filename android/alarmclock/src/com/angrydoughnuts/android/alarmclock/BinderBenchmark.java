@@ -0,0 +1,87 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import android.os.IBinder;
+import android.os.Parcel;
+import android.os.RemoteException;
+
+/**
+ * Measures the per-call cost of reaching AlarmClockService (For debugging
+ * only).  Every client of the service lives in this process, so
+ * AlarmClockInterface.Stub.asInterface() already returns the stub itself and
+ * calls are plain method calls.  The second measurement drives the same
+ * calls through IBinder.transact(), which marshals arguments and results
+ * exactly as a client in another process would, minus the kernel round trip.
+ */
+final class BinderBenchmark {
+  private static final String DESCRIPTOR = AlarmClockInterface.class.getName();
+
+  private BinderBenchmark() {}
+
+  static String run(AlarmClockInterface clock, int iterations) throws RemoteException {
+    PendingSchedule schedule = clock.pendingSchedule(-1);
+    long alarmId = schedule.size() > 0 ? schedule.alarmId(0) : 0;
+
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; ++i) {
+      clock.pendingSchedule(-1);
+      clock.pendingAlarm(alarmId);
+    }
+    long local = System.nanoTime() - start;
+
+    IBinder binder = clock.asBinder();
+    Parcel data = Parcel.obtain();
+    Parcel reply = Parcel.obtain();
+    try {
+      start = System.nanoTime();
+      for (int i = 0; i < iterations; ++i) {
+        data.setDataSize(0);
+        reply.setDataSize(0);
+        data.writeInterfaceToken(DESCRIPTOR);
+        data.writeLong(-1);
+        binder.transact(AlarmClockInterface.Stub.TRANSACTION_pendingSchedule, data, reply, 0);
+        reply.readException();
+        if (reply.readInt() != 0) {
+          PendingSchedule.CREATOR.createFromParcel(reply);
+        }
+
+        data.setDataSize(0);
+        reply.setDataSize(0);
+        data.writeInterfaceToken(DESCRIPTOR);
+        data.writeLong(alarmId);
+        binder.transact(AlarmClockInterface.Stub.TRANSACTION_pendingAlarm, data, reply, 0);
+        reply.readException();
+        if (reply.readInt() != 0) {
+          AlarmTime.CREATOR.createFromParcel(reply);
+        }
+      }
+    } finally {
+      data.recycle();
+      reply.recycle();
+    }
+    long marshalled = System.nanoTime() - start;
+
+    return "Binder calls (" + schedule.size() + " alarms, " + 2 * iterations
+      + " calls):\nlocal " + perCall(local, iterations)
+      + "\nmarshalled " + perCall(marshalled, iterations);
+  }
+
+  private static String perCall(long nanos, int iterations) {
+    // Local calls take well under a microsecond, so keep a fraction.
+    return (nanos / (2 * iterations) / 1000.0f) + "us/call";
+  }
+}
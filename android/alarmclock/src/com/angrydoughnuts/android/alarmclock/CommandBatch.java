@@ -0,0 +1,166 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A set of schedule changes which were requested before AlarmClockServiceBinder
+ * finished binding.  Requests for the same alarm collapse to the last one, so
+ * toggling an alarm on and off several times results in a single command.
+ * The whole batch is sent to the service in one binder call and applied in
+ * order: delete all, then creations, then per-alarm commands.
+ */
+public final class CommandBatch implements Parcelable {
+  public static final int SCHEDULE = 1;
+  public static final int UNSCHEDULE = 2;
+  public static final int DELETE = 3;
+  public static final int ACKNOWLEDGE = 4;
+  // The argument is the snooze length in minutes, or DEFAULT_SNOOZE.
+  public static final int SNOOZE = 5;
+
+  public static final int DEFAULT_SNOOZE = -1;
+
+  private boolean deleteAll;
+  private ArrayList<AlarmTime> creates;
+  // Maps alarmId -> {command, argument}, in the order last requested.
+  private LinkedHashMap<Long, int[]> commands;
+
+  public CommandBatch() {
+    creates = new ArrayList<AlarmTime>();
+    commands = new LinkedHashMap<Long, int[]>();
+  }
+
+  public boolean isEmpty() {
+    return !deleteAll && creates.isEmpty() && commands.isEmpty();
+  }
+
+  /**
+   * Every alarm will be deleted, so anything requested so far is moot.
+   */
+  public void deleteAll() {
+    deleteAll = true;
+    creates.clear();
+    commands.clear();
+  }
+
+  public void create(AlarmTime time) {
+    creates.add(time);
+  }
+
+  public void put(long alarmId, int command, int argument) {
+    // Nothing can follow the deletion of an alarm.
+    int[] previous = commands.get(alarmId);
+    if (previous != null && previous[0] == DELETE) {
+      return;
+    }
+    // Re-insert so that iteration reflects the order of the latest requests.
+    commands.remove(alarmId);
+    commands.put(alarmId, new int[] { command, argument });
+  }
+
+  /**
+   * Applies every command to the service.  Must be called on the service's
+   * worker thread.
+   */
+  void applyTo(AlarmClockService service) {
+    if (deleteAll) {
+      service.deleteAllAlarms();
+    }
+    for (AlarmTime time : creates) {
+      service.createAlarm(time);
+    }
+    for (Map.Entry<Long, int[]> entry : commands.entrySet()) {
+      long alarmId = entry.getKey();
+      int argument = entry.getValue()[1];
+      switch (entry.getValue()[0]) {
+        case SCHEDULE:
+          service.scheduleAlarm(alarmId);
+          break;
+        case UNSCHEDULE:
+          service.dismissAlarm(alarmId);
+          break;
+        case DELETE:
+          service.deleteAlarm(alarmId);
+          break;
+        case ACKNOWLEDGE:
+          service.acknowledgeAlarm(alarmId);
+          break;
+        case SNOOZE:
+          if (argument == DEFAULT_SNOOZE) {
+            service.snoozeAlarm(alarmId);
+          } else {
+            service.snoozeAlarmFor(alarmId, argument);
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown command: " + entry.getValue()[0]);
+      }
+    }
+  }
+
+  public String toString() {
+    return (deleteAll ? "DELETE ALL, " : "") + creates.size() + " new, "
+      + commands.size() + " changed";
+  }
+
+  private CommandBatch(Parcel source) {
+    this();
+    deleteAll = source.readInt() != 0;
+    source.readTypedList(creates, AlarmTime.CREATOR);
+    int size = source.readInt();
+    for (int i = 0; i < size; ++i) {
+      long alarmId = source.readLong();
+      int command = source.readInt();
+      int argument = source.readInt();
+      commands.put(alarmId, new int[] { command, argument });
+    }
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeInt(deleteAll ? 1 : 0);
+    dest.writeTypedList(creates);
+    dest.writeInt(commands.size());
+    for (Map.Entry<Long, int[]> entry : commands.entrySet()) {
+      dest.writeLong(entry.getKey());
+      dest.writeInt(entry.getValue()[0]);
+      dest.writeInt(entry.getValue()[1]);
+    }
+  }
+
+  public static final Parcelable.Creator<CommandBatch> CREATOR =
+    new Parcelable.Creator<CommandBatch>() {
+      @Override
+      public CommandBatch createFromParcel(Parcel source) {
+        return new CommandBatch(source);
+      }
+      @Override
+      public CommandBatch[] newArray(int size) {
+        return new CommandBatch[size];
+      }
+    };
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+}
@@ -0,0 +1,149 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+import android.content.Context;
+
+/**
+ * Renders the time remaining until an alarm, ie "1 day 2 hours 3 minutes ".
+ * The day/hour/minute strings are split around their %d once per locale and
+ * the text is built in a reused StringBuilder.  The text only depends on the
+ * number of minutes remaining, so recent results are cached by that number
+ * and returned as is until the minute changes.
+ */
+final class CountdownText {
+  private static final int CACHE_SIZE = 64;
+  private static CountdownText current;
+
+  private final Locale locale;
+  private final String occurred;
+  private final Template day;
+  private final Template days;
+  private final Template hour;
+  private final Template hours;
+  private final Template minute;
+  private final Template minutes;
+  // A direct mapped cache from minutes remaining to text.
+  private final long[] cachedMinutes = new long[CACHE_SIZE];
+  private final String[] cachedText = new String[CACHE_SIZE];
+  private final StringBuilder builder = new StringBuilder();
+
+  /**
+   * @return the renderer for the current locale.
+   */
+  public static synchronized CountdownText get(Context context) {
+    if (current == null || !current.locale.equals(Locale.getDefault())) {
+      current = new CountdownText(context.getApplicationContext());
+    }
+    return current;
+  }
+
+  private CountdownText(Context context) {
+    locale = Locale.getDefault();
+    // String.format() writes %d with the locale's digits.  Only split the
+    // templates if those are the plain ASCII digits StringBuilder produces.
+    final boolean asciiDigits = new DecimalFormatSymbols(locale).getZeroDigit() == '0';
+    occurred = context.getString(R.string.alarm_has_occurred);
+    day = new Template(context, R.string.day, asciiDigits);
+    days = new Template(context, R.string.days, asciiDigits);
+    hour = new Template(context, R.string.hour, asciiDigits);
+    hours = new Template(context, R.string.hours, asciiDigits);
+    minute = new Template(context, R.string.minute, asciiDigits);
+    minutes = new Template(context, R.string.minutes, asciiDigits);
+    for (int i = 0; i < CACHE_SIZE; ++i) {
+      cachedMinutes[i] = -1;
+    }
+  }
+
+  /**
+   * @param then the alarm time, in milliseconds since the epoch.
+   * @return the time remaining until then, or R.string.alarm_has_occurred
+   * if it has passed.
+   */
+  public synchronized String timeUntil(long then) {
+    final long now = System.currentTimeMillis();
+    if (then < now) {
+      return occurred;
+    }
+    final long difference = then / 1000 / 60 - now / 1000 / 60;
+    final int slot = (int) (difference % CACHE_SIZE);
+    if (cachedMinutes[slot] == difference) {
+      return cachedText[slot];
+    }
+
+    final long dayCount = difference / (60 * 24);
+    final long hourCount = difference % (60 * 24) / 60;
+    final long minuteCount = difference % 60;
+    builder.setLength(0);
+    if (dayCount == 1) {
+      day.appendTo(builder, dayCount);
+    } else if (dayCount > 1) {
+      days.appendTo(builder, dayCount);
+    }
+    if (hourCount == 1) {
+      hour.appendTo(builder, hourCount);
+    } else if (hourCount > 1) {
+      hours.appendTo(builder, hourCount);
+    }
+    if (minuteCount == 1) {
+      minute.appendTo(builder, minuteCount);
+    } else if (minuteCount > 1) {
+      minutes.appendTo(builder, minuteCount);
+    }
+    final String text = builder.toString();
+    cachedMinutes[slot] = difference;
+    cachedText[slot] = text;
+    return text;
+  }
+
+  /**
+   * A "%d unit" resource string, split around its %d.  Templates which
+   * can't be split are formatted with getString() instead.
+   */
+  private static final class Template {
+    private final Context context;
+    private final int resId;
+    private final String prefix;
+    private final String suffix;
+
+    Template(Context context, int resId, boolean asciiDigits) {
+      this.context = context;
+      this.resId = resId;
+      final String raw = context.getString(resId);
+      final int arg = raw.indexOf("%d");
+      if (asciiDigits && arg >= 0 && raw.indexOf('%') == arg && raw.indexOf('%', arg + 2) < 0) {
+        prefix = raw.substring(0, arg);
+        suffix = raw.substring(arg + 2);
+      } else {
+        prefix = null;
+        suffix = null;
+      }
+    }
+
+    // Appends the formatted value followed by a space.
+    void appendTo(StringBuilder out, long value) {
+      if (prefix == null) {
+        out.append(context.getString(resId, value));
+      } else {
+        out.append(prefix).append(value).append(suffix);
+      }
+      out.append(' ');
+    }
+  }
+}
@@ -0,0 +1,187 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * This container holds every alarm which is currently firing in the
+ * NotificationService.  Alarms are grouped into ringing sessions: the alarm
+ * at the head of the queue starts a session and any other alarm which fired
+ * within the coalescing window of it joins that session.  All members of a
+ * session share a single sound/vibrate/notification cycle and are
+ * acknowledged together.  Alarms outside of the window wait in the queue
+ * until the current session ends.  Waiting alarms are prioritized by the
+ * time they were scheduled to fire, so an alarm whose delivery was delayed
+ * (ie, while the phone was in deep sleep) still rings ahead of alarms
+ * scheduled after it.  Alarms scheduled for the same time ring in the order
+ * they were offered.
+ * All methods are synchronized; callers which need several calls to be
+ * atomic should synchronize on the queue itself.
+ */
+public final class FiringQueue {
+  // Maps alarmId -> entry for every alarm in the queue or in the session.
+  private HashMap<Long, Entry> entries;
+  // Alarms waiting for the current session to end.
+  private PriorityQueue<Entry> waiting;
+  // Alarms in the currently ringing session.  The first is the primary.
+  private ArrayList<Entry> session;
+  private long windowMillis;
+  private long sequence;
+  // True between endSession() and drained(), while the owner is still
+  // tearing down the media of the previous session.
+  private boolean draining;
+
+  public FiringQueue(long windowMillis) {
+    entries = new HashMap<Long, Entry>();
+    waiting = new PriorityQueue<Entry>(4, new Comparator<Entry>() {
+      @Override
+      public int compare(Entry lhs, Entry rhs) {
+        if (lhs.firedAt != rhs.firedAt) {
+          return lhs.firedAt < rhs.firedAt ? -1 : 1;
+        }
+        if (lhs.sequence != rhs.sequence) {
+          return lhs.sequence < rhs.sequence ? -1 : 1;
+        }
+        return 0;
+      }
+    });
+    session = new ArrayList<Entry>();
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Changes the coalescing window.  Alarms already in a session stay there;
+   * the new window applies from the next offer() or startSession().
+   */
+  public synchronized void setWindowMillis(long windowMillis) {
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Adds a fired alarm.  If a session is ringing and this alarm fired within
+   * the coalescing window of the session's primary alarm, it joins the
+   * session immediately.  Otherwise it waits in the queue.
+   * @param firedAtMillis the wall clock time the alarm was scheduled for.
+   * @return false if this alarm is already firing.
+   */
+  public synchronized boolean offer(long alarmId, long firedAtMillis) {
+    if (entries.containsKey(alarmId)) {
+      return false;
+    }
+    Entry entry = new Entry(alarmId, firedAtMillis, sequence++);
+    entries.put(alarmId, entry);
+    if (hasSession() && withinWindow(entry)) {
+      session.add(entry);
+    } else {
+      waiting.offer(entry);
+    }
+    return true;
+  }
+
+  public synchronized boolean contains(long alarmId) {
+    return entries.containsKey(alarmId);
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public synchronized boolean hasSession() {
+    return session.size() > 0;
+  }
+
+  public synchronized int sessionSize() {
+    return session.size();
+  }
+
+  /**
+   * Promotes the waiting alarm scheduled earliest, along with every other
+   * waiting alarm within the coalescing window of it, to a new session.
+   * @return false if a session is already ringing, the previous session is
+   * still draining or nothing is waiting.
+   */
+  public synchronized boolean startSession() {
+    if (draining || hasSession() || waiting.isEmpty()) {
+      return false;
+    }
+    session.add(waiting.poll());
+    while (!waiting.isEmpty() && withinWindow(waiting.peek())) {
+      session.add(waiting.poll());
+    }
+    return true;
+  }
+
+  /**
+   * The alarm whose settings drive the current session.
+   */
+  public synchronized long primary() {
+    if (!hasSession()) {
+      throw new IllegalStateException("No ringing session.");
+    }
+    return session.get(0).alarmId;
+  }
+
+  /**
+   * The alarm ids of the current session, primary first.
+   */
+  public synchronized long[] sessionIds() {
+    long[] alarmIds = new long[session.size()];
+    for (int i = 0; i < alarmIds.length; ++i) {
+      alarmIds[i] = session.get(i).alarmId;
+    }
+    return alarmIds;
+  }
+
+  /**
+   * Removes every member of the current session from the queue.  No new
+   * session can be started until drained() is called.
+   * @return the alarm ids of the session, primary first.
+   */
+  public synchronized long[] endSession() {
+    long[] alarmIds = new long[session.size()];
+    for (int i = 0; i < alarmIds.length; ++i) {
+      alarmIds[i] = session.get(i).alarmId;
+      entries.remove(alarmIds[i]);
+    }
+    session.clear();
+    draining = true;
+    return alarmIds;
+  }
+
+  public synchronized void drained() {
+    draining = false;
+  }
+
+  private boolean withinWindow(Entry entry) {
+    return entry.firedAt - session.get(0).firedAt <= windowMillis;
+  }
+
+  private static final class Entry {
+    final long alarmId;
+    final long firedAt;
+    final long sequence;
+
+    Entry(long alarmId, long firedAt, long sequence) {
+      this.alarmId = alarmId;
+      this.firedAt = firedAt;
+      this.sequence = sequence;
+    }
+  }
+}
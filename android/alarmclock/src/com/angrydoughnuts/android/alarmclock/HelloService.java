@@ -1,29 +1,19 @@
 package com.angrydoughnuts.android.alarmclock;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.util.Scanner;
-
 import android.app.Service;
 import android.os.AsyncTask;
 import android.os.IBinder;
 import android.content.Intent;
-import android.os.Bundle;
 import android.util.Log;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.StatusLine;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 public class HelloService extends Service {
-   
+   /** Wall clock time the alarm this light belongs to fires at. */
+   public static final String EXTRAS_FIRE_TIME = "fire_time";
+   /** Overrides the light url, e.g. to point at a local stub server. */
+   public static final String EXTRAS_URL = "url";
+   /** How long past the alarm the light is still worth turning on. */
+   private static final long MAX_LATENESS_MS = 60 * 1000;
+
    /** indicates how to behave if the service is killed */
    int mStartMode;
    /** interface for clients that bind */
@@ -43,18 +33,21 @@ public class HelloService extends Service {
    public int onStartCommand(Intent intent, int flags, int startId) {
       Log.d("chase", "start command");
 
-      new RequestTask().execute("http://stackoverflow.com");
+      String url = LightClient.DEFAULT_URL;
+      long fireTime = System.currentTimeMillis();
+      if (intent != null) {
+         if (intent.hasExtra(EXTRAS_URL)) {
+            url = intent.getStringExtra(EXTRAS_URL);
+         }
+         fireTime = intent.getLongExtra(EXTRAS_FIRE_TIME, fireTime);
+      }
+      new RequestTask(fireTime + MAX_LATENESS_MS).execute(url);
 
       Log.d("chase", "returned outside of this");
 
       return mStartMode;
    }
 
-  private String convertInputStream(InputStream is, String encoding) {
-    Scanner scanner = new Scanner(is, encoding).useDelimiter("\\A");
-    return scanner.hasNext() ? scanner.next() : "";
-  }
-
    /** A client is binding to the service with bindService() */
    @Override
    public IBinder onBind(Intent intent) {
@@ -85,39 +78,15 @@ public class HelloService extends Service {
 
 }
 
-class RequestTask extends AsyncTask<String, String, String> {
+class RequestTask extends AsyncTask<String, Void, Integer> {
+    private final long deadline;
 
-    @Override
-    protected String doInBackground(String... uri) {
-        HttpClient httpclient = new DefaultHttpClient();
-        HttpResponse response;
-        String responseString = null;
-        try {
-            response = httpclient.execute(new HttpGet(uri[0]));
-            StatusLine statusLine = response.getStatusLine();
-            if(statusLine.getStatusCode() == HttpStatus.SC_OK){
-                ByteArrayOutputStream out = new ByteArrayOutputStream();
-                response.getEntity().writeTo(out);
-                out.close();
-                responseString = out.toString();
-                Log.d("chase", "got a response string");
-                Log.d("chase", responseString);
-            } else{
-                //Closes the connection.
-                response.getEntity().getContent().close();
-                throw new IOException(statusLine.getReasonPhrase());
-            }
-        } catch (ClientProtocolException e) {
-            //TODO Handle problems..
-        } catch (IOException e) {
-            //TODO Handle problems..
-        }
-        return responseString;
+    RequestTask(long deadline) {
+        this.deadline = deadline;
     }
 
     @Override
-    protected void onPostExecute(String result) {
-        super.onPostExecute(result);
-        //Do anything with response..
+    protected Integer doInBackground(String... uri) {
+        return LightClient.get().trigger(uri[0], deadline);
     }
-}
\ No newline at end of file
+}
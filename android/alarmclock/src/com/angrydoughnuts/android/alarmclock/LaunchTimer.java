@@ -0,0 +1,95 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.util.HashMap;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Measures how long an activity takes to draw its first frame and,
+ * separately, how long until the data loaded in the background is shown.
+ * Both are reported in the log, along with a running count, mean and max of
+ * the first frame times of each activity in this process.  Nothing is
+ * written to disk, so measuring doesn't slow down what is being measured.
+ * Create it at the start of onCreate().
+ */
+final class LaunchTimer {
+  private static final String TAG = "LaunchTimer";
+  // Activity name -> {count, total, max} of first frame times.
+  private static final HashMap<String, long[]> firstFrameStats =
+    new HashMap<String, long[]>();
+
+  private final String name;
+  private final long start;
+  private boolean loadReported;
+
+  LaunchTimer(Activity activity) {
+    this(activity, SystemClock.elapsedRealtime());
+  }
+
+  /**
+   * @param start SystemClock.elapsedRealtime() of the event the launch
+   * started from, if that was before onCreate().
+   */
+  LaunchTimer(Activity activity, long start) {
+    name = activity.getClass().getSimpleName();
+    this.start = start;
+    final View root = activity.getWindow().getDecorView();
+    root.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener() {
+      @Override
+      public boolean onPreDraw() {
+        root.getViewTreeObserver().removeOnPreDrawListener(this);
+        recordFirstFrame(name, elapsed());
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Call once the loaded data has been handed to the views.  Only the first
+   * call is reported.
+   */
+  void loaded() {
+    if (loadReported) {
+      return;
+    }
+    loadReported = true;
+    Log.i(TAG, name + " data loaded: " + elapsed() + "ms");
+  }
+
+  private long elapsed() {
+    return SystemClock.elapsedRealtime() - start;
+  }
+
+  private static void recordFirstFrame(String name, long latency) {
+    long[] stats = firstFrameStats.get(name);
+    if (stats == null) {
+      stats = new long[3];
+      firstFrameStats.put(name, stats);
+    }
+    stats[0]++;
+    stats[1] += latency;
+    stats[2] = Math.max(stats[2], latency);
+    Log.i(TAG, Build.MODEL + " " + name + " first frame: " + latency + "ms (mean "
+        + stats[1] / stats[0] + "ms, max " + stats[2] + "ms over " + stats[0] + ")");
+  }
+}
@@ -0,0 +1,137 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import android.util.Log;
+
+/**
+ * Sends the request which turns on the light ahead of an alarm.  A single
+ * pooled client is kept for the life of the process, so a connection the
+ * server keeps alive is reused by the next trigger instead of paying for a
+ * new connection on a freshly woken radio.  Response bodies are read through
+ * a small buffer and thrown away, which hands the connection back to the
+ * pool.  The url is a parameter, so the client can be pointed at a local
+ * stub server.
+ */
+final class LightClient {
+  private static final String TAG = "LightClient";
+  public static final String DEFAULT_URL = "http://stackoverflow.com";
+  // Upper bound on connection setup, even when the deadline is further away.
+  private static final int CONNECT_TIMEOUT_MS = 10 * 1000;
+  private static final int MAX_CONNECTIONS = 2;
+  private static final int BUFFER_SIZE = 1024;
+
+  private static LightClient instance;
+
+  private final DefaultHttpClient client;
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  public static synchronized LightClient get() {
+    if (instance == null) {
+      instance = new LightClient();
+    }
+    return instance;
+  }
+
+  private LightClient() {
+    HttpParams params = new BasicHttpParams();
+    HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+    HttpConnectionParams.setStaleCheckingEnabled(params, true);
+    ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+    SchemeRegistry schemes = new SchemeRegistry();
+    schemes.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+    schemes.register(new Scheme("https", SSLSocketFactory.getSocketFactory(), 443));
+    client = new DefaultHttpClient(
+        new ThreadSafeClientConnManager(params, schemes), params);
+  }
+
+  /**
+   * Requests url, giving up once the wall clock passes deadline.  Blocks, so
+   * it must not be called from the UI thread.
+   * @return the HTTP status code, or -1 if the request failed or the
+   * deadline had already passed.
+   */
+  public synchronized int trigger(String url, long deadline) {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      Log.w(TAG, "Deadline passed, not requesting " + url);
+      return -1;
+    }
+    HttpGet request = new HttpGet(url);
+    HttpParams params = request.getParams();
+    ConnManagerParams.setTimeout(params, remaining);
+    HttpConnectionParams.setConnectionTimeout(params,
+        (int) Math.min(CONNECT_TIMEOUT_MS, remaining));
+    HttpConnectionParams.setSoTimeout(params,
+        (int) Math.min(Integer.MAX_VALUE, remaining));
+    try {
+      HttpResponse response = client.execute(request);
+      int status = response.getStatusLine().getStatusCode();
+      long bytes = discard(request, response.getEntity(), deadline);
+      Log.d(TAG, url + ": " + status + ", " + bytes + " bytes");
+      return status;
+    } catch (IOException e) {
+      request.abort();
+      Log.w(TAG, "Request to " + url + " failed", e);
+      return -1;
+    }
+  }
+
+  // Reads the body to the end so the connection can go back to the pool.
+  // The read timeout only bounds each read, so the deadline is checked
+  // between them; a body which is still arriving at the deadline costs the
+  // connection.
+  private long discard(HttpGet request, HttpEntity entity, long deadline)
+      throws IOException {
+    if (entity == null) {
+      return 0;
+    }
+    long bytes = 0;
+    InputStream in = entity.getContent();
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        bytes += read;
+        if (System.currentTimeMillis() > deadline) {
+          request.abort();
+          throw new IOException("Deadline passed reading response");
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+}
@@ -0,0 +1,123 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.Log;
+
+/**
+ * Publishes the alarm text shown on the lock screen
+ * (Settings.System.NEXT_ALARM_FORMATTED).  Each write goes through the
+ * settings provider and notifies all of its observers, so the text is only
+ * written when it differs from the value in the setting.  The setting is
+ * read again before every skipped write, since other apps (ie, the stock
+ * clock) may have replaced our text; a read is much cheaper than a write.
+ * Writes are also spaced at least MIN_INTERVAL_MS apart: text published
+ * sooner is held, and only the latest is written when the interval ends.
+ * Must only be used from the thread of the given Handler.
+ */
+final class LockScreenText {
+  private static final String TAG = "LockScreenText";
+  private static final long MIN_INTERVAL_MS = 1000;
+
+  private final Context context;
+  private final Handler handler;
+  private final Runnable flush;
+  // Text waiting for the interval to end, or null.
+  private String pending;
+  private long lastWriteAt;
+  private int writes;
+  private int writesAvoided;
+
+  public LockScreenText(Context context, Handler handler) {
+    this.context = context;
+    this.handler = handler;
+    this.flush = new Runnable() {
+      @Override
+      public void run() {
+        flush();
+      }
+    };
+    this.lastWriteAt = SystemClock.uptimeMillis() - MIN_INTERVAL_MS;
+  }
+
+  /**
+   * Sets the lock screen text, subject to the rate limit.
+   * @param text the text to show, or null to leave the setting alone.
+   */
+  public void publish(String text) {
+    if (text == null) {
+      return;
+    }
+    if (pending != null) {
+      // A write is already scheduled; it will write this text instead.
+      pending = text;
+      writesAvoided++;
+      return;
+    }
+    pending = text;
+    final long wait = lastWriteAt + MIN_INTERVAL_MS - SystemClock.uptimeMillis();
+    if (wait > 0) {
+      handler.postDelayed(flush, wait);
+    } else {
+      flush();
+    }
+  }
+
+  /**
+   * Sets the lock screen text immediately, ie, before the thread exits.
+   * The text is still only written if it changed.
+   */
+  public void publishNow(String text) {
+    handler.removeCallbacks(flush);
+    if (text != null) {
+      pending = text;
+    }
+    if (pending != null) {
+      flush();
+    }
+  }
+
+  public int writes() {
+    return writes;
+  }
+
+  public int writesAvoided() {
+    return writesAvoided;
+  }
+
+  private void flush() {
+    final String text = pending;
+    pending = null;
+    final String current = Settings.System.getString(
+        context.getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED);
+    if (text.equals(current)) {
+      writesAvoided++;
+      return;
+    }
+    Settings.System.putString(
+        context.getContentResolver(), Settings.System.NEXT_ALARM_FORMATTED, text);
+    lastWriteAt = SystemClock.uptimeMillis();
+    writes++;
+    if (AppSettings.isDebugMode(context)) {
+      Log.d(TAG, "Wrote \"" + text + "\" (" + writes + " writes, "
+          + writesAvoided + " avoided)");
+    }
+  }
+}
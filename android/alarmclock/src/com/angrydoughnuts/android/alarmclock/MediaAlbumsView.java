@@ -17,10 +17,10 @@ package com.angrydoughnuts.android.alarmclock;
 
 import android.app.Activity;
 import android.content.Context;
-import android.media.MediaPlayer;
+import android.database.Cursor;
 import android.net.Uri;
 import android.provider.MediaStore.Audio.AlbumColumns;
-import android.provider.MediaStore.Audio.Media;
+import android.provider.MediaStore.Audio.Artists;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.AdapterView;
@@ -29,15 +29,15 @@ import android.widget.ViewFlipper;
 public class MediaAlbumsView extends MediaListView {
   private final String[] albumsColumns = new String[] {
     AlbumColumns.ALBUM,
-    AlbumColumns.ALBUM_KEY
   };
 
   private final int[] albumsResIDs = new int[] {
     R.id.media_value,
-    R.id.media_key
   };
 
   private MediaSongsView songsView;
+  // The artist whose albums are listed, or -1 when listing every album.
+  private long artistId = -1;
 
   public MediaAlbumsView(Context context) {
     this(context, null);
@@ -60,22 +60,43 @@ public class MediaAlbumsView extends MediaListView {
     songsView.setCursorManager(activity);
   }
 
+  @Override
+  protected void release() {
+    super.release();
+    songsView.release();
+  }
+
   @Override
   public void addToFlipper(ViewFlipper flipper) {
     super.addToFlipper(flipper);
     songsView.addToFlipper(flipper);
   }
 
-  public void setMediaPlayer(MediaPlayer mPlayer) {
-    songsView.setMediaPlayer(mPlayer);
+  @Override
+  public void setPreview(TonePreview preview) {
+    songsView.setPreview(preview);
   }
 
   public void query(Uri contentUri) {
-    query(contentUri, null);
+    artistId = -1;
+    super.query(contentUri, AlbumColumns.ALBUM, R.layout.media_picker_row, albumsColumns, albumsResIDs);
   }
 
-  public void query(Uri contentUri, String selection) {
-    super.query(contentUri, AlbumColumns.ALBUM_KEY, selection, R.layout.media_picker_row, albumsColumns, albumsResIDs);
+  /**
+   * Lists the albums by the given artist on the external volume.
+   */
+  public void queryArtist(long artistId) {
+    this.artistId = artistId;
+    super.query(Artists.Albums.getContentUri("external", artistId), AlbumColumns.ALBUM,
+        R.layout.media_picker_row, albumsColumns, albumsResIDs);
+  }
+
+  @Override
+  protected Cursor indexedQuery(Uri contentUri, String selection, String filter) {
+    if (artistId < 0) {
+      return null;
+    }
+    return ToneIndex.get(getContext()).albumsBy(artistId, filter);
   }
 
   @Override
@@ -86,7 +107,7 @@ public class MediaAlbumsView extends MediaListView {
   @Override
   public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
     super.onItemClick(parent, view, position, id);
-    songsView.query(Media.EXTERNAL_CONTENT_URI, AlbumColumns.ALBUM_KEY + " = '" + getLastSelectedName() + "'");
+    songsView.queryAlbum(getLastSelectedId());
     getFlipper().setInAnimation(getContext(), R.anim.slide_in_left);
     getFlipper().setOutAnimation(getContext(), R.anim.slide_out_left);
     getFlipper().showNext();
@@ -17,9 +17,7 @@ package com.angrydoughnuts.android.alarmclock;
 
 import android.app.Activity;
 import android.content.Context;
-import android.media.MediaPlayer;
 import android.net.Uri;
-import android.provider.MediaStore.Audio.Albums;
 import android.provider.MediaStore.Audio.ArtistColumns;
 import android.util.AttributeSet;
 import android.view.View;
@@ -29,12 +27,10 @@ import android.widget.ViewFlipper;
 public class MediaArtistsView extends MediaListView {
   private final String[] artistsColumns = new String[] {
     ArtistColumns.ARTIST,
-    ArtistColumns.ARTIST_KEY
   };
 
   private final int[] artistsResIDs = new int[] {
     R.id.media_value,
-    R.id.media_key
   };
 
   private MediaAlbumsView albumsView;
@@ -58,22 +54,25 @@ public class MediaArtistsView extends MediaListView {
     albumsView.setCursorManager(activity);
   }
 
+  @Override
+  protected void release() {
+    super.release();
+    albumsView.release();
+  }
+
   @Override
   public void addToFlipper(ViewFlipper flipper) {
     super.addToFlipper(flipper);
     albumsView.addToFlipper(flipper);
   }
 
-  public void setMediaPlayer(MediaPlayer mPlayer) {
-    albumsView.setMediaPlayer(mPlayer);
+  @Override
+  public void setPreview(TonePreview preview) {
+    albumsView.setPreview(preview);
   }
 
   public void query(Uri contentUri) {
-    query(contentUri, null);
-  }
-
-  public void query(Uri contentUri, String selection) {
-    super.query(contentUri, ArtistColumns.ARTIST_KEY, selection, R.layout.media_picker_row, artistsColumns, artistsResIDs);
+    super.query(contentUri, ArtistColumns.ARTIST, R.layout.media_picker_row, artistsColumns, artistsResIDs);
   }
 
   @Override
@@ -84,7 +83,7 @@ public class MediaArtistsView extends MediaListView {
   @Override
   public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
     super.onItemClick(parent, view, position, id);
-    albumsView.query(Albums.EXTERNAL_CONTENT_URI, ArtistColumns.ARTIST_KEY + " = '" + getLastSelectedName() + "'");
+    albumsView.queryArtist(getLastSelectedId());
     getFlipper().setInAnimation(getContext(), R.anim.slide_in_left);
     getFlipper().setOutAnimation(getContext(), R.anim.slide_out_left);
     getFlipper().showNext();
@@ -19,16 +19,20 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import android.app.Activity;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.CursorWrapper;
 import android.database.MergeCursor;
 import android.graphics.Typeface;
-import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.provider.BaseColumns;
 import android.util.AttributeSet;
+import android.util.Log;
 import android.view.KeyEvent;
 import android.view.View;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SimpleCursorAdapter;
@@ -48,19 +52,42 @@ public class MediaListView extends ListView implements OnItemClickListener {
   }
 
   protected static int DEFAULT_TONE_INDEX = -69;
+  private static final String TAG = "MediaListView";
 
+  // Rows are read in pages of this size as the list is scrolled.
+  private static final int PAGE_SIZE = 100;
+
+  // The rows shown: the static rows and every page read so far.
   private Cursor cursor;
-  private Cursor staticCursor;
-  private MediaPlayer mPlayer;
+  private final ArrayList<Cursor> parts = new ArrayList<Cursor>();
+  private SimpleCursorAdapter adapter;
+  private TonePreview preview;
   private ViewFlipper flipper;
   private Activity cursorManager;
   private Uri contentUri;
   private String nameColumn;
+  private String selection;
+  private String[] selectionArgs;
+  private String[] queryColumns;
+  // Rows are narrowed to those where each word of the filter appears in
+  // one of the filter columns.  See ToneIndex.filterWords().
+  private String filter = "";
+  private String[] filterColumns;
   private String sortOrder;
   private OnItemPickListener listener;
+  // Queries only run while the list is active.
+  private boolean active = true;
+  // Rows read from the query so far, and whether there may be more.
+  private int loadedRows;
+  private boolean moreAvailable;
+  // Whether a page is being read, and a count which changes whenever what
+  // is loaded is thrown away, so that late pages can be recognized.
+  private boolean loading;
+  private int generation;
 
   private String selectedName;
   private Uri selectedUri;
+  private long selectedId;
 
   public MediaListView(Context context) {
     this(context, null);
@@ -81,8 +108,8 @@ public class MediaListView extends ListView implements OnItemClickListener {
         }
         if (event.getKeyCode() == KeyEvent.KEYCODE_BACK) {
           if (event.getAction() == KeyEvent.ACTION_UP) {
-            if (mPlayer != null) {
-              mPlayer.stop();
+            if (preview != null) {
+              preview.stop();
             }
             flipper.setInAnimation(getContext(), R.anim.slide_in_right);
             flipper.setOutAnimation(getContext(), R.anim.slide_out_right);
@@ -93,14 +120,27 @@ public class MediaListView extends ListView implements OnItemClickListener {
         return false;
       }
     });
+    // Read the next page when the end of the current one comes into view.
+    setOnScrollListener(new OnScrollListener() {
+      @Override
+      public void onScroll(AbsListView view, int firstVisibleItem,
+          int visibleItemCount, int totalItemCount) {
+        if (moreAvailable && !loading
+            && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+          loadPage();
+        }
+      }
+      @Override
+      public void onScrollStateChanged(AbsListView view, int scrollState) {}
+    });
   }
 
-  public void setMediaPlayer(MediaPlayer mPlayer) {
-    this.mPlayer = mPlayer;
+  public void setPreview(TonePreview preview) {
+    this.preview = preview;
   }
 
-  protected MediaPlayer getMediaPlayer() {
-    return mPlayer;
+  protected TonePreview getPreview() {
+    return preview;
   }
 
   public void addToFlipper(ViewFlipper flipper) {
@@ -117,8 +157,26 @@ public class MediaListView extends ListView implements OnItemClickListener {
     this.cursorManager = activity;
   }
 
-  protected void manageCursor(Cursor cursor) {
-    cursorManager.startManagingCursor(cursor);
+  /**
+   * Sets whether this list should hold a cursor.  A list which isn't active
+   * remembers its query but doesn't run it, and releases its cursor, until it
+   * is made active again.  Lists are active by default.
+   */
+  public void setActive(boolean active) {
+    this.active = active;
+    if (!active) {
+      release();
+    } else if (cursor == null && !loading && contentUri != null) {
+      load();
+    }
+  }
+
+  /**
+   * Closes this list's cursor.  Subclasses which own nested lists should
+   * release those as well.
+   */
+  protected void release() {
+    closeCursor();
   }
 
   protected void query(Uri contentUri, String nameColumn,
@@ -128,7 +186,21 @@ public class MediaListView extends ListView implements OnItemClickListener {
 
   protected void query(Uri contentUri, String nameColumn, String selection,
       int rowResId, String[] displayColumns, int[] resIDs) {
+    query(contentUri, nameColumn, selection, null, rowResId, displayColumns, resIDs);
+  }
+
+  /**
+   * Sets the query for this list, and runs it if the list is active.  Values
+   * should always be bound through selectionArgs rather than spliced into
+   * the selection.
+   */
+  protected void query(Uri contentUri, String nameColumn, String selection,
+      String[] selectionArgs, int rowResId, String[] displayColumns, int[] resIDs) {
+    closeCursor();
+    this.contentUri = contentUri;
     this.nameColumn = nameColumn;
+    this.selection = selection;
+    this.selectionArgs = selectionArgs;
     final ArrayList<String> queryColumns =
       new ArrayList<String>(displayColumns.length + 1);
     queryColumns.addAll(Arrays.asList(displayColumns));
@@ -137,22 +209,13 @@ public class MediaListView extends ListView implements OnItemClickListener {
     if (!queryColumns.contains(BaseColumns._ID)) {
       queryColumns.add(BaseColumns._ID);
     }
-
-    Cursor dbCursor = getContext().getContentResolver().query(
-        contentUri, queryColumns.toArray(new String[] {}),
-        selection, null, sortOrder);
-    if (staticCursor != null) {
-      Cursor[] cursors = new Cursor[] { staticCursor, dbCursor };
-      cursor = new MergeCursor(cursors);
-    } else {
-      cursor = dbCursor;
+    this.queryColumns = queryColumns.toArray(new String[] {});
+    if (filterColumns == null) {
+      filterColumns = new String[] { displayColumns[0] };
     }
-    manageCursor(cursor);
-
-    this.contentUri = contentUri;
 
-    final SimpleCursorAdapter adapter = new SimpleCursorAdapter(
-        getContext(), rowResId, cursor, displayColumns, resIDs);
+    adapter = new SimpleCursorAdapter(
+        getContext(), rowResId, null, displayColumns, resIDs);
     // Use a custom binder to highlight the selected element.
     adapter.setViewBinder(new ViewBinder() {
       @Override
@@ -170,14 +233,239 @@ public class MediaListView extends ListView implements OnItemClickListener {
       }});
     setAdapter(adapter);
     setOnItemClickListener(this);
+
+    if (active) {
+      load();
+    }
+  }
+
+  /**
+   * Sets the columns the filter is matched against.  Defaults to the first
+   * display column.  An indexedQuery() must match the same columns.
+   */
+  protected void setFilterColumns(String... columns) {
+    filterColumns = columns;
+  }
+
+  /**
+   * Shows only the rows where every word of the given text appears,
+   * ignoring case, in one of the filter columns.  Shows every row if it has
+   * no words.
+   */
+  public void setFilter(String filter) {
+    if (filter.equals(this.filter)) {
+      return;
+    }
+    this.filter = filter;
+    // The selection is by position, which no longer applies.
+    clearChoices();
+    if (active && contentUri != null) {
+      load();
+    }
+  }
+
+  /**
+   * Subclasses may answer a query from a local index instead of the
+   * ContentResolver.  Called on a background thread.  The index must
+   * filter by the same rule as the ContentResolver query; see setFilter().
+   * @return a cursor with at least the columns of the query, in any order,
+   * or null to query the ContentResolver.  It is projected to the query's
+   * column order so that it merges with the static rows.
+   */
+  protected Cursor indexedQuery(Uri contentUri, String selection, String filter) {
+    return null;
+  }
+
+  // Drops what is loaded and starts reading again from the first row.
+  private void load() {
+    closeCursor();
+    loadPage();
+  }
+
+  // Reads the next page in the background.  Only one page is read at a
+  // time; the scroll listener asks again once it arrives.
+  private void loadPage() {
+    if (loading) {
+      return;
+    }
+    loading = true;
+    new PageLoader(generation, loadedRows).execute();
+  }
+
+  /**
+   * Reads one page of rows off the UI thread.  Pages are requested with the
+   * MediaProvider's "limit" query parameter as "offset,count", so each page
+   * costs a single page of rows rather than the whole prefix.  Providers
+   * which ignore the parameter return every row in the first page, which
+   * ends paging.  Providers which reject it are asked again without it and
+   * read in full.  Queries without a sort order have no stable offsets and
+   * are always read in full.
+   */
+  private final class PageLoader extends AsyncTask<Void, Void, Cursor> {
+    private final int loaderGeneration;
+    private final int offset;
+    private final Uri uri;
+    private final String[] columns;
+    private final String where;
+    private final String[] whereArgs;
+    private final String order;
+    private final String currentFilter;
+    private final String currentSelection;
+    private boolean paged;
+
+    PageLoader(int loaderGeneration, int offset) {
+      this.loaderGeneration = loaderGeneration;
+      this.offset = offset;
+      uri = contentUri;
+      columns = queryColumns;
+      order = sortOrder;
+      currentFilter = filter;
+      currentSelection = selection;
+      final ArrayList<String> words = ToneIndex.filterWords(filter);
+      if (words.size() > 0) {
+        // Words are letters and digits only, so they need no escaping.
+        // LIKE only ignores the case of ASCII letters.
+        final StringBuilder clause = new StringBuilder();
+        final ArrayList<String> args = new ArrayList<String>();
+        if (selectionArgs != null) {
+          args.addAll(Arrays.asList(selectionArgs));
+        }
+        if (selection != null) {
+          clause.append('(').append(selection).append(')');
+        }
+        for (String word : words) {
+          if (clause.length() > 0) {
+            clause.append(" AND ");
+          }
+          clause.append('(');
+          for (int i = 0; i < filterColumns.length; ++i) {
+            if (i > 0) {
+              clause.append(" OR ");
+            }
+            clause.append(filterColumns[i]).append(" LIKE ?");
+            args.add("%" + word + "%");
+          }
+          clause.append(')');
+        }
+        where = clause.toString();
+        whereArgs = args.toArray(new String[args.size()]);
+      } else {
+        where = selection;
+        whereArgs = selectionArgs;
+      }
+    }
+
+    @Override
+    protected Cursor doInBackground(Void... params) {
+      if (offset == 0) {
+        Cursor indexed = indexedQuery(uri, currentSelection, currentFilter);
+        if (indexed != null) {
+          // An indexed query holds every row already; there's nothing to
+          // page.
+          indexed.getCount();
+          return new ProjectionCursor(indexed, columns);
+        }
+      }
+      final ContentResolver resolver = getContext().getContentResolver();
+      Cursor page = null;
+      if (order != null) {
+        Uri pageUri = uri.buildUpon()
+          .appendQueryParameter("limit", offset + "," + PAGE_SIZE).build();
+        try {
+          page = resolver.query(pageUri, columns, where, whereArgs, order);
+          paged = true;
+        } catch (RuntimeException e) {
+          Log.w(TAG, "Paging rejected for " + uri + ", reading it in full", e);
+          if (offset > 0) {
+            return null;
+          }
+        }
+      }
+      if (!paged) {
+        page = resolver.query(uri, columns, where, whereArgs, order);
+      }
+      if (page != null) {
+        // Fill the cursor's window here rather than on the UI thread.
+        page.getCount();
+      }
+      return page;
+    }
+
+    @Override
+    protected void onPostExecute(Cursor page) {
+      if (loaderGeneration != generation) {
+        // The query, filter or activation changed while this page was read.
+        if (page != null) {
+          page.close();
+        }
+        return;
+      }
+      loading = false;
+      if (page == null) {
+        moreAvailable = false;
+        return;
+      }
+      final int count = page.getCount();
+      loadedRows += count;
+      // More than a page means the provider ignored the limit and returned
+      // everything.
+      moreAvailable = paged && count == PAGE_SIZE;
+      parts.add(page);
+      showParts();
+    }
+  }
+
+  // Shows the static rows followed by every page read so far.  The parts are
+  // wrapped so that closing the merged cursor, which the adapter does when
+  // it is replaced, leaves them open for the next merge.
+  private void showParts() {
+    final Cursor[] wrapped = new Cursor[parts.size()];
+    for (int i = 0; i < wrapped.length; ++i) {
+      wrapped[i] = new CursorWrapper(parts.get(i)) {
+        @Override
+        public void close() {}
+      };
+    }
+    if (cursor != null) {
+      cursorManager.stopManagingCursor(cursor);
+    }
+    cursor = new MergeCursor(wrapped);
+    cursorManager.startManagingCursor(cursor);
+    // This closes the previous merged cursor, but not its parts.
+    adapter.changeCursor(cursor);
+  }
+
+  // Closes everything loaded, and drops any page still being read.
+  private void closeCursor() {
+    generation++;
+    loading = false;
+    moreAvailable = false;
+    loadedRows = 0;
+    if (cursor != null) {
+      cursorManager.stopManagingCursor(cursor);
+      adapter.changeCursor(null);
+      cursor = null;
+    }
+    for (Cursor part : parts) {
+      part.close();
+    }
+    parts.clear();
+    Cursor staticCursor = staticCursor();
+    if (staticCursor != null) {
+      parts.add(staticCursor);
+    }
   }
 
   public void overrideSortOrder(String sortOrder) {
     this.sortOrder = sortOrder;
   }
 
-  protected void includeStaticCursor(Cursor cursor) {
-    staticCursor = cursor;
+  /**
+   * @return rows to show ahead of the query results, or null.  A new cursor
+   * is needed for each query, since the previous one is closed with it.
+   */
+  protected Cursor staticCursor() {
+    return null;
   }
 
   // TODO(cgallek): get rid of these two accessor methods in favor of
@@ -190,6 +478,27 @@ public class MediaListView extends ListView implements OnItemClickListener {
     return selectedUri;
   }
 
+  protected long getLastSelectedId() {
+    return selectedId;
+  }
+
+  /**
+   * @return the media at the given position, or null if there's no such row.
+   */
+  protected Uri uriAt(int position) {
+    if (cursor == null || !cursor.moveToPosition(position)) {
+      return null;
+    }
+    return uriFor(cursor.getLong(cursor.getColumnIndex(BaseColumns._ID)));
+  }
+
+  private Uri uriFor(long id) {
+    if (id == DEFAULT_TONE_INDEX) {
+      return AlarmUtil.getDefaultAlarmUri();
+    }
+    return Uri.withAppendedPath(contentUri, "" + id);
+  }
+
   public void setMediaPickListener(OnItemPickListener listener) {
     this.listener = listener;
   }
@@ -199,14 +508,104 @@ public class MediaListView extends ListView implements OnItemClickListener {
     setItemChecked(position, true);
     cursor.moveToPosition(position);
     selectedName = cursor.getString(cursor.getColumnIndex(nameColumn));
-    final int toneIndex = cursor.getInt(cursor.getColumnIndex(BaseColumns._ID));
-    if (toneIndex == DEFAULT_TONE_INDEX) {
-      selectedUri = AlarmUtil.getDefaultAlarmUri();
-    } else {
-      selectedUri = Uri.withAppendedPath(contentUri, "" + toneIndex);
-    }
+    selectedId = cursor.getLong(cursor.getColumnIndex(BaseColumns._ID));
+    selectedUri = uriFor(selectedId);
     if (listener != null) {
       listener.onItemPick(selectedUri, selectedName);
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Presents a cursor's columns in a given order.  The adapter resolves
+   * column indices once, against the first part of the merged cursor, so
+   * every part must have the same columns in the same order.
+   */
+  private static final class ProjectionCursor extends CursorWrapper {
+    private final String[] columns;
+    // Maps a column of this cursor -> the column of the wrapped one.
+    private final int[] map;
+
+    ProjectionCursor(Cursor cursor, String[] columns) {
+      super(cursor);
+      this.columns = columns;
+      map = new int[columns.length];
+      for (int i = 0; i < columns.length; ++i) {
+        map[i] = cursor.getColumnIndexOrThrow(columns[i]);
+      }
+    }
+
+    @Override
+    public int getColumnCount() {
+      return columns.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return columns;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+      return columns[column];
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+      for (int i = 0; i < columns.length; ++i) {
+        if (columns[i].equals(columnName)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) {
+      final int column = getColumnIndex(columnName);
+      if (column < 0) {
+        throw new IllegalArgumentException("Unknown column: " + columnName);
+      }
+      return column;
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+      return super.getBlob(map[column]);
+    }
+
+    @Override
+    public String getString(int column) {
+      return super.getString(map[column]);
+    }
+
+    @Override
+    public short getShort(int column) {
+      return super.getShort(map[column]);
+    }
+
+    @Override
+    public int getInt(int column) {
+      return super.getInt(map[column]);
+    }
+
+    @Override
+    public long getLong(int column) {
+      return super.getLong(map[column]);
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return super.getFloat(map[column]);
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return super.getDouble(map[column]);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return super.isNull(map[column]);
+    }
+  }
+}
@@ -15,20 +15,25 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import com.angrydoughnuts.android.alarmclock.MediaListView.OnItemPickListener;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.os.Message;
 import android.provider.MediaStore.Audio.Albums;
 import android.provider.MediaStore.Audio.Artists;
 import android.provider.MediaStore.Audio.Media;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.TabHost;
 import android.widget.TextView;
 import android.widget.ViewFlipper;
@@ -39,7 +44,10 @@ import android.widget.TabHost.OnTabChangeListener;
  * It allows you to access media through 4 tabs:  One that lists media
  * stored internally on the phone, and three that allow you to access
  * the media stored on the SD card.  These three tabs allow you to browse by
- * artist, album, and song. 
+ * artist, album, and song.  Each tab is queried when it is first shown,
+ * results are read a page at a time, and tabs which aren't shown release
+ * their cursors.  Songs are listed from the ToneIndex when it is ready, and
+ * the filter box narrows every tab as the user types.
  */
 public class MediaPickerDialog extends AlertDialog {
   public interface OnMediaPickListener {
@@ -54,18 +62,23 @@ public class MediaPickerDialog extends AlertDialog {
   private String selectedName;
   private Uri selectedUri;
   private OnMediaPickListener pickListener;
-  private MediaPlayer mediaPlayer;
+  private TonePreview preview;
+  private TabHost tabs;
+  // The top level list for each tab.  Only the list for the tab being shown
+  // holds a cursor.
+  private final HashMap<String, MediaListView> tabLists =
+    new HashMap<String, MediaListView>();
 
   public MediaPickerDialog(final Activity context) {
     super(context);
-    mediaPlayer = new MediaPlayer();
+    preview = new TonePreview(context);
 
     final LayoutInflater inflater =
       (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
     final View body_view = inflater.inflate(R.layout.media_picker_dialog, null);
     setView(body_view);
 
-    TabHost tabs = (TabHost) body_view.findViewById(R.id.media_tabs);
+    tabs = (TabHost) body_view.findViewById(R.id.media_tabs);
     tabs.setup();
 
     tabs.addTab(tabs.newTabSpec(INTERNAL_TAB).setContent(R.id.media_picker_internal).setIndicator(context.getString(R.string.internal)));
@@ -85,36 +98,60 @@ public class MediaPickerDialog extends AlertDialog {
 
     final MediaSongsView internalList = (MediaSongsView) body_view.findViewById(R.id.media_picker_internal);
     internalList.setCursorManager(context);
+    internalList.setActive(false);
     internalList.includeDefault();
     internalList.query(Media.INTERNAL_CONTENT_URI);
-    internalList.setMediaPlayer(mediaPlayer);
+    internalList.setPreview(preview);
     internalList.setMediaPickListener(listener);
+    tabLists.put(INTERNAL_TAB, internalList);
 
     final MediaSongsView songsList = (MediaSongsView) body_view.findViewById(R.id.media_picker_songs);
     songsList.setCursorManager(context);
+    songsList.setActive(false);
     songsList.query(Media.EXTERNAL_CONTENT_URI);
-    songsList.setMediaPlayer(mediaPlayer);
+    songsList.setPreview(preview);
     songsList.setMediaPickListener(listener);
+    tabLists.put(ALL_SONGS_TAB, songsList);
 
     final ViewFlipper artistsFlipper = (ViewFlipper) body_view.findViewById(R.id.media_picker_artists);
     final MediaArtistsView artistsList = new MediaArtistsView(context);
     artistsList.setCursorManager(context);
+    artistsList.setActive(false);
     artistsList.addToFlipper(artistsFlipper);
     artistsList.query(Artists.EXTERNAL_CONTENT_URI);
-    artistsList.setMediaPlayer(mediaPlayer);
+    artistsList.setPreview(preview);
     artistsList.setMediaPickListener(listener);
+    tabLists.put(ARTISTS_TAB, artistsList);
 
     final ViewFlipper albumsFlipper = (ViewFlipper) body_view.findViewById(R.id.media_picker_albums);
     final MediaAlbumsView albumsList = new MediaAlbumsView(context);
     albumsList.setCursorManager(context);
+    albumsList.setActive(false);
     albumsList.addToFlipper(albumsFlipper);
     albumsList.query(Albums.EXTERNAL_CONTENT_URI);
-    albumsList.setMediaPlayer(mediaPlayer);
+    albumsList.setPreview(preview);
     albumsList.setMediaPickListener(listener);
+    tabLists.put(ALBUMS_TAB, albumsList);
+
+    // Narrows every tab as the user types.
+    final EditText filter = (EditText) body_view.findViewById(R.id.media_picker_filter);
+    filter.addTextChangedListener(new TextWatcher() {
+      @Override
+      public void afterTextChanged(Editable s) {
+        for (MediaListView list : tabLists.values()) {
+          list.setFilter(s.toString().trim());
+        }
+      }
+      @Override
+      public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
+      @Override
+      public void onTextChanged(CharSequence s, int start, int before, int count) {}
+    });
 
     tabs.setOnTabChangedListener(new OnTabChangeListener() {
       @Override
       public void onTabChanged(String tabId) {
+        showTab(tabId);
         if (tabId.equals(ARTISTS_TAB)) {
           artistsFlipper.setDisplayedChild(0);
         } else if (tabId.equals(ALBUMS_TAB)) {
@@ -151,16 +188,31 @@ public class MediaPickerDialog extends AlertDialog {
     this.pickListener = listener;
   }
 
+  // Queries the list for the given tab, the first time it is shown, and
+  // releases the cursors held by the others.
+  private void showTab(String tabId) {
+    for (Map.Entry<String, MediaListView> entry : tabLists.entrySet()) {
+      if (!entry.getKey().equals(tabId)) {
+        entry.getValue().setActive(false);
+      }
+    }
+    tabLists.get(tabId).setActive(true);
+  }
+
   @Override
-  protected void onStop() {
-    super.onStop();
-    mediaPlayer.stop();
+  protected void onStart() {
+    super.onStart();
+    showTab(tabs.getCurrentTabTag());
   }
 
   @Override
-  protected void finalize() throws Throwable {
-    mediaPlayer.release();
-    super.finalize();
+  protected void onStop() {
+    super.onStop();
+    // Players hold decoders, so don't keep them while hidden.
+    preview.release();
+    for (MediaListView list : tabLists.values()) {
+      list.setActive(false);
+    }
   }
 
   // Make these no-ops and final so the buttons can't be overridden buy the
@@ -19,12 +19,14 @@ import java.util.ArrayList;
 import java.util.Arrays;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.MatrixCursor;
 import android.database.MatrixCursor.RowBuilder;
-import android.media.MediaPlayer;
 import android.net.Uri;
 import android.provider.BaseColumns;
 import android.provider.MediaStore.MediaColumns;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.provider.MediaStore.Audio.Media;
 import android.util.AttributeSet;
 import android.view.View;
 import android.widget.AdapterView.OnItemClickListener;
@@ -39,6 +41,10 @@ public class MediaSongsView extends MediaListView implements OnItemClickListener
       R.id.media_value,
   };
 
+  private boolean includeDefault;
+  // The album being listed, or -1 when listing a whole volume.
+  private long albumId = -1;
+
   public MediaSongsView(Context context) {
     this(context, null);
   }
@@ -50,35 +56,62 @@ public class MediaSongsView extends MediaListView implements OnItemClickListener
   public MediaSongsView(Context context, AttributeSet attrs, int defStyle) {
     super(context, attrs, defStyle);
     overrideSortOrder(MediaColumns.TITLE + " ASC");
+    // The columns ToneIndex.search() matches.
+    setFilterColumns(MediaColumns.TITLE, AudioColumns.ARTIST, AudioColumns.ALBUM);
   }
 
   public void query(Uri contentUri) {
-    query(contentUri, null);
+    albumId = -1;
+    super.query(contentUri, MediaColumns.TITLE, R.layout.media_picker_row, songsColumns, songsResIDs);
+  }
+
+  /**
+   * Lists the songs on the given album of the external volume.
+   */
+  public void queryAlbum(long albumId) {
+    this.albumId = albumId;
+    super.query(Media.EXTERNAL_CONTENT_URI, MediaColumns.TITLE,
+        AudioColumns.ALBUM_ID + " = ?", new String[] { Long.toString(albumId) },
+        R.layout.media_picker_row, songsColumns, songsResIDs);
   }
 
-  public void query(Uri contentUri, String selection) {
-    super.query(contentUri, MediaColumns.TITLE, selection, R.layout.media_picker_row, songsColumns, songsResIDs);
+  @Override
+  protected Cursor indexedQuery(Uri contentUri, String selection, String filter) {
+    final ToneIndex index = ToneIndex.get(getContext());
+    if (albumId >= 0) {
+      return index.searchAlbum(albumId, filter);
+    }
+    return index.search(contentUri, filter);
   }
 
   @Override
   public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
     super.onItemClick(parent, view, position, id);
 
-    MediaPlayer mPlayer = getMediaPlayer();
-    if (mPlayer == null) {
+    TonePreview preview = getPreview();
+    if (preview == null) {
       return;
     }
-    mPlayer.reset();
-    try {
-      mPlayer.setDataSource(getContext(), getLastSelectedUri());
-      mPlayer.prepare();
-      mPlayer.start();
-    } catch (Exception e) {
-      e.printStackTrace();
+    // The rows on either side are the most likely to be tapped next.
+    final ArrayList<Uri> neighbours = new ArrayList<Uri>(2);
+    for (int neighbour : new int[] { position + 1, position - 1 }) {
+      final Uri uri = uriAt(neighbour);
+      if (uri != null) {
+        neighbours.add(uri);
+      }
     }
+    preview.play(getLastSelectedUri(), neighbours);
   }
 
   public void includeDefault() {
+    includeDefault = true;
+  }
+
+  @Override
+  protected Cursor staticCursor() {
+    if (!includeDefault) {
+      return null;
+    }
     final ArrayList<String> defaultColumns =
       new ArrayList<String>(songsColumns.length + 1);
     defaultColumns.addAll(Arrays.asList(songsColumns));
@@ -87,6 +120,6 @@ public class MediaSongsView extends MediaListView implements OnItemClickListener
     RowBuilder row = defaultsCursor.newRow();
     row.add("Default");
     row.add(DEFAULT_TONE_INDEX);
-    includeStaticCursor(defaultsCursor);
+    return defaultsCursor;
   }
 }
@@ -15,8 +15,6 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
-import java.util.LinkedList;
-
 import com.angrydoughnuts.android.alarmclock.WakeLock.WakeLockException;
 
 import android.app.Notification;
@@ -31,7 +29,12 @@ import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.RemoteCallbackList;
+import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.Vibrator;
 import android.util.Log;
 
@@ -41,12 +44,24 @@ import android.util.Log;
  * will trigger the alarm receiver.  This receiver will in turn start
  * this service, passing the appropriate alarm url as data in the intent.
  * This service is capable of receiving multiple alarm notifications
- * without acknowledgments and will queue them until they are sequentially
- * acknowledged.  The service is capable of playing a sound, triggering
+ * without acknowledgments and will queue them in a FiringQueue, ordered by
+ * the time they were scheduled for.  Alarms which
+ * fire within the coalescing window of each other ring as a single session
+ * and are acknowledged together.  The service is capable of playing a sound, triggering
  * the vibrator and displaying the notification activity (used to acknowledge
  * alarms).
+ * Threading: media playback, database reads and notification updates all
+ * happen on a worker thread owned by this service, and the periodic
+ * callbacks below run there as well.  The main thread only launches the
+ * notification activity.  Binder calls read the (synchronized) FiringQueue
+ * directly and queue any real work on the worker thread.
+ * Changes to the ringing state (session, firing count, volume and timeout)
+ * are pushed to RingingListeners from the worker thread.
  */
 public class NotificationService extends Service {
+  // Wall clock time the alarm was scheduled for; see FiringQueue.
+  public final static String EXTRAS_SCHEDULED_AT = "scheduled_at";
+
   public class NoAlarmsException extends Exception {
     private static final long serialVersionUID = 1L;
   }
@@ -144,7 +159,7 @@ public class NotificationService extends Service {
   }
 
   // Data
-  private LinkedList<Long> firingAlarms;
+  private FiringQueue firingAlarms;
   private AlarmClockServiceBinder service;
   private DbAccessor db;
   // Notification tools
@@ -152,10 +167,22 @@ public class NotificationService extends Service {
   private Notification notification;
   private PendingIntent notificationActivity;
   private Handler handler;
+  private Handler mainHandler;
   private VolumeIncreaser volumeIncreaseCallback; 
   private Runnable soundCheck;
-  private Runnable notificationBlinker;
+  // The text currently posted to the status bar, or null if none.
+  private String notifyText;
   private Runnable autoCancel;
+  // SystemClock.uptimeMillis() at which autoCancel runs, or 0.
+  private long timeoutAt;
+  // Only broadcast to from the worker thread.
+  private RemoteCallbackList<RingingListener> ringingListeners;
+  private Runnable publishState;
+  // The last state sent to ringingListeners.
+  private long publishedAlarmId = -1;
+  private int publishedCount;
+  private float publishedVolume;
+  private long publishedTimeoutAt;
 
   @Override
   public IBinder onBind(Intent intent) {
@@ -165,14 +192,25 @@ public class NotificationService extends Service {
   @Override
   public void onCreate() {
     super.onCreate();
-    firingAlarms = new LinkedList<Long>();
-    // Access to in-memory and persistent data structures.
+    firingAlarms = new FiringQueue(
+        1000 * AppSettings.coalesceWindowSecs(getApplicationContext()));
     service = new AlarmClockServiceBinder(getApplicationContext());
     service.bind();
-    db = new DbAccessor(getApplicationContext());
 
-    // Setup audio.
-    MediaSingleton.INSTANCE.useContext(getApplicationContext());
+    // Setup a self-scheduling event loops.  These all run on the worker.
+    HandlerThread workerThread = new HandlerThread("NotificationService");
+    workerThread.start();
+    handler = new Handler(workerThread.getLooper());
+    mainHandler = new Handler();
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        // Access to persistent data structures.
+        db = new DbAccessor(getApplicationContext());
+        // Setup audio.
+        MediaSingleton.INSTANCE.useContext(getApplicationContext());
+      }
+    });
 
     // Setup notification bar.
     manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
@@ -180,11 +218,18 @@ public class NotificationService extends Service {
     // activity can't be viewed via the root activity.
     Intent intent = new Intent(getApplicationContext(), ActivityAlarmNotification.class);
     notificationActivity = PendingIntent.getActivity(getApplicationContext(), 0, intent, 0);
-    notification = new Notification(R.drawable.alarmclock_notification, null, 0);
+    // The blinking is done by the animated icon itself.
+    notification = new Notification(R.drawable.alarmclock_notification_blink, null, 0);
     notification.flags |= Notification.FLAG_ONGOING_EVENT;
 
-    // Setup a self-scheduling event loops.
-    handler = new Handler();
+    ringingListeners = new RemoteCallbackList<RingingListener>();
+    publishState = new Runnable() {
+      @Override
+      public void run() {
+        publishState();
+      }
+    };
+
     volumeIncreaseCallback = new VolumeIncreaser();
     soundCheck = new Runnable() {
       @Override
@@ -196,39 +241,17 @@ public class NotificationService extends Service {
         handler.postDelayed(soundCheck, next);
       }
     };
-    notificationBlinker = new Runnable() {
-      @Override
-      public void run() {
-        String notifyText;
-        try {
-          AlarmInfo info = db.readAlarmInfo(currentAlarmId());
-          notifyText = info.getName();
-          if (notifyText.equals("")) {
-            notifyText = info.getTime().localizedString(getApplicationContext());
-          }
-        } catch (NoAlarmsException e) {
-          return;
-        }
-        notification.setLatestEventInfo(getApplicationContext(), notifyText, "", notificationActivity);
-        if (notification.icon == R.drawable.alarmclock_notification) {
-          notification.icon = R.drawable.alarmclock_notification2;
-        } else {
-          notification.icon = R.drawable.alarmclock_notification;
-        }
-        manager.notify(AlarmClockService.NOTIFICATION_BAR_ID, notification);
-
-        long next = AlarmUtil.millisTillNextInterval(AlarmUtil.Interval.SECOND);
-        handler.postDelayed(notificationBlinker, next);
-      }
-    };
     autoCancel = new Runnable() {
       @Override
       public void run() {
-        try {
-          acknowledgeCurrentNotification(0);
-        } catch (NoAlarmsException e) {
-          return;
+        long[] alarmIds;
+        synchronized (firingAlarms) {
+          if (!firingAlarms.hasSession()) {
+            return;
+          }
+          alarmIds = firingAlarms.endSession();
         }
+        finishSession(alarmIds, 0);
         Intent notifyActivity = new Intent(getApplicationContext(), ActivityAlarmNotification.class);
         notifyActivity.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
         notifyActivity.putExtra(ActivityAlarmNotification.TIMEOUT_COMMAND, true);
@@ -240,8 +263,17 @@ public class NotificationService extends Service {
   @Override
   public void onDestroy() {
     super.onDestroy();
-    db.closeConnections();
     service.unbind();
+    // Let any queued work finish before closing the database and exiting the
+    // worker thread.
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        db.closeConnections();
+        ringingListeners.kill();
+        Looper.myLooper().quit();
+      }
+    });
 
     boolean debug = AppSettings.isDebugMode(getApplicationContext());
     if (debug && firingAlarms.size() != 0) {
@@ -278,26 +310,70 @@ public class NotificationService extends Service {
           throw new IllegalStateException(e.getMessage());
         }
       }
-      Intent notifyActivity = new Intent(getApplicationContext(), ActivityAlarmNotification.class);
-      notifyActivity.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-      startActivity(notifyActivity);
-
-      boolean firstAlarm = firingAlarms.size() == 0;
-      if (!firingAlarms.contains(alarmId)) {
-        firingAlarms.add(alarmId);
+      final long receivedAt = intent.getLongExtra(
+          ActivityAlarmNotification.EXTRAS_RECEIVED_AT, SystemClock.elapsedRealtime());
+
+      // Queue the alarm right away so that the activity can find it.  Only
+      // start the media if this alarm didn't join a session which is already
+      // ringing.  The window is re-read every time so that changes to the
+      // setting apply while the service is running.
+      firingAlarms.setWindowMillis(
+          1000 * AppSettings.coalesceWindowSecs(getApplicationContext()));
+      firingAlarms.offer(alarmId, intent.getLongExtra(
+          EXTRAS_SCHEDULED_AT, System.currentTimeMillis()));
+      final boolean newSession = firingAlarms.startSession();
+      final long displayId;
+      synchronized (firingAlarms) {
+        displayId = firingAlarms.hasSession() ? firingAlarms.primary() : alarmId;
       }
 
-      if (firstAlarm) {
-        soundAlarm(alarmId);
+      // Launching the activity is queued ahead of the media for this alarm.
+      // It must not jump the whole queue: on a cold start the database is
+      // only opened by the initialization posted in onCreate().
+      handler.post(new Runnable() {
+        @Override
+        public void run() {
+          launchActivity(displayId, receivedAt);
+        }
+      });
+      if (newSession) {
+        handler.post(new Runnable() {
+          @Override
+          public void run() {
+            soundAlarm(displayId);
+          }
+        });
+      } else {
+        // The firing count changed.
+        handler.post(publishState);
       }
     }
   }
 
+  // Hand the activity everything it needs to draw its first frame so that it
+  // doesn't have to wait for a binding or a database read.
+  private void launchActivity(long alarmId, long receivedAt) {
+    Intent notifyActivity = new Intent(getApplicationContext(), ActivityAlarmNotification.class);
+    notifyActivity.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+    notifyActivity.putExtra(ActivityAlarmNotification.EXTRAS_RECEIVED_AT, receivedAt);
+    AlarmInfo info = db.readAlarmInfo(alarmId);
+    if (info != null) {
+      notifyActivity.putExtra(ActivityAlarmNotification.EXTRAS_ALARM_ID, alarmId);
+      notifyActivity.putExtra(ActivityAlarmNotification.EXTRAS_LABEL, info.getName());
+      notifyActivity.putExtra(ActivityAlarmNotification.EXTRAS_TIME, info.getTime().toString());
+      notifyActivity.putExtra(ActivityAlarmNotification.EXTRAS_SNOOZE_MINUTES,
+          db.readAlarmSettings(alarmId).getSnoozeMinutes());
+    }
+    startActivity(notifyActivity);
+  }
+
   public long currentAlarmId() throws NoAlarmsException {
-    if (firingAlarms.size() == 0) {
-      throw new NoAlarmsException();
+    synchronized (firingAlarms) {
+      if (!firingAlarms.hasSession()) {
+        throw new NoAlarmsException();
+      }
+      return firingAlarms.primary();
     }
-    return firingAlarms.getFirst();
   }
 
   public int firingAlarmCount() {
@@ -308,32 +384,80 @@ public class NotificationService extends Service {
     return volumeIncreaseCallback.volume();
   }
 
-  public void acknowledgeCurrentNotification(int snoozeMinutes) throws NoAlarmsException {
-    long alarmId = currentAlarmId();
-    if (firingAlarms.contains(alarmId)) {
-      firingAlarms.remove(alarmId);
-      if (snoozeMinutes <= 0) {
-        service.acknowledgeAlarm(alarmId);
-      } else {
-        service.snoozeAlarmFor(alarmId, snoozeMinutes);
+  public void addRingingListener(final RingingListener listener) {
+    ringingListeners.register(listener);
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          RingingState state = currentState();
+          listener.ringingStateChanged(state.alarmId, state.count, state.volume, state.timeoutAt);
+        } catch (RemoteException e) {}
+      }
+    });
+  }
+
+  public void removeRingingListener(RingingListener listener) {
+    ringingListeners.unregister(listener);
+  }
+
+  public void acknowledgeCurrentNotification(final int snoozeMinutes) throws NoAlarmsException {
+    // Remove the session from the queue right away so that callers see a
+    // consistent firing count, but leave the real work to the worker.
+    final long[] alarmIds;
+    synchronized (firingAlarms) {
+      if (!firingAlarms.hasSession()) {
+        throw new NoAlarmsException();
       }
+      alarmIds = firingAlarms.endSession();
     }
-    stopNotifying();
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        finishSession(alarmIds, snoozeMinutes);
+      }
+    });
+  }
 
-    // If this was the only alarm firing, stop the service.  Otherwise,
-    // start the next alarm in the stack.
-    if (firingAlarms.size() == 0) {
-      stopSelf();
+  private void finishSession(long[] alarmIds, int snoozeMinutes) {
+    // Acknowledge every alarm in the ringing session with one call.
+    if (snoozeMinutes <= 0) {
+      service.acknowledgeAlarms(alarmIds);
     } else {
-      soundAlarm(alarmId);
+      service.snoozeAlarmsFor(alarmIds, snoozeMinutes);
     }
-    try {
-      WakeLock.release(alarmId);
-    } catch (WakeLockException e) {
-      if (AppSettings.isDebugMode(getApplicationContext())) {
-        throw new IllegalStateException(e.getMessage());
+    stopNotifying();
+    firingAlarms.drained();
+
+    // Release the leases before the service may be stopped: onDestroy()
+    // checks that none are still held.
+    for (long alarmId : alarmIds) {
+      try {
+        WakeLock.release(alarmId);
+      } catch (WakeLockException e) {
+        if (AppSettings.isDebugMode(getApplicationContext())) {
+          throw new IllegalStateException(e.getMessage());
+        }
       }
     }
+
+    // If these were the only alarms firing, stop the service.  Otherwise,
+    // start the next session in the queue.
+    if (firingAlarms.startSession()) {
+      soundAlarm(firingAlarms.primary());
+      publishState();
+    } else {
+      publishState();
+      // New alarms are queued on the main thread, so decide there.
+      mainHandler.post(new Runnable() {
+        @Override
+        public void run() {
+          if (firingAlarms.size() == 0) {
+            stopSelf();
+          }
+        }
+      });
+    }
   }
 
   private void soundAlarm(long alarmId) {
@@ -348,25 +472,103 @@ public class NotificationService extends Service {
         getApplicationContext(), volumeIncreaseCallback.volume());
     MediaSingleton.INSTANCE.play(getApplicationContext(), settings.getTone());
 
+    // Post the blinking status bar notification for this alarm.
+    AlarmInfo info = db.readAlarmInfo(alarmId);
+    if (info != null) {
+      String text = info.getName();
+      if (text.equals("")) {
+        text = info.getTime().localizedString(getApplicationContext());
+      }
+      postNotification(text);
+    }
+
     // Start periodic events for handling this notification.
     handler.post(volumeIncreaseCallback);
     handler.post(soundCheck);
-    handler.post(notificationBlinker);
     // Set up a canceler if this notification isn't acknowledged by the timeout.
     int timeoutMillis = 60 * 1000 * AppSettings.alarmTimeOutMins(getApplicationContext());
-    handler.postDelayed(autoCancel, timeoutMillis);
+    timeoutAt = SystemClock.uptimeMillis() + timeoutMillis;
+    handler.postAtTime(autoCancel, timeoutAt);
+    // Members of this session may have waited behind earlier sessions, so
+    // their wake lock leases only start counting down now.
+    for (long sessionId : firingAlarms.sessionIds()) {
+      try {
+        WakeLock.extend(getApplicationContext(), sessionId,
+            timeoutMillis + WakeLock.LEASE_SLACK_MILLIS);
+      } catch (WakeLockException e) {
+        if (AppSettings.isDebugMode(getApplicationContext())) {
+          throw new IllegalStateException(e.getMessage());
+        }
+      }
+    }
+    publishState();
   }
 
   private void stopNotifying() {
     // Stop periodic events.
     handler.removeCallbacks(volumeIncreaseCallback);
     handler.removeCallbacks(soundCheck);
-    handler.removeCallbacks(notificationBlinker);
     handler.removeCallbacks(autoCancel);
+    timeoutAt = 0;
 
     // Stop notifying.
     MediaSingleton.INSTANCE.stop();
     MediaSingleton.INSTANCE.resetVolume(getApplicationContext());
+    // The AlarmClockService replaces the notification itself.
+    notifyText = null;
+  }
+
+  private static final class RingingState {
+    long alarmId;
+    int count;
+    float volume;
+    long timeoutAt;
+  }
+
+  private RingingState currentState() {
+    RingingState state = new RingingState();
+    synchronized (firingAlarms) {
+      state.alarmId = firingAlarms.hasSession() ? firingAlarms.primary() : -1;
+      state.count = firingAlarms.size();
+    }
+    state.volume = state.alarmId == -1 ? 0 : volumeIncreaseCallback.volume();
+    state.timeoutAt = state.alarmId == -1 ? 0 : timeoutAt;
+    return state;
+  }
+
+  // Must be called on the worker thread.  Listeners are only told about
+  // actual changes.
+  private void publishState() {
+    RingingState state = currentState();
+    if (state.alarmId == publishedAlarmId && state.count == publishedCount
+        && state.volume == publishedVolume && state.timeoutAt == publishedTimeoutAt) {
+      return;
+    }
+    publishedAlarmId = state.alarmId;
+    publishedCount = state.count;
+    publishedVolume = state.volume;
+    publishedTimeoutAt = state.timeoutAt;
+
+    int count = ringingListeners.beginBroadcast();
+    for (int i = 0; i < count; ++i) {
+      try {
+        ringingListeners.getBroadcastItem(i).ringingStateChanged(
+            state.alarmId, state.count, state.volume, state.timeoutAt);
+      } catch (RemoteException e) {
+        // The RemoteCallbackList will take care of removing dead listeners.
+      }
+    }
+    ringingListeners.finishBroadcast();
+  }
+
+  // Only talk to the notification manager when the visible text changes.
+  private void postNotification(String text) {
+    if (text.equals(notifyText)) {
+      return;
+    }
+    notifyText = text;
+    notification.setLatestEventInfo(getApplicationContext(), text, "", notificationActivity);
+    manager.notify(AlarmClockService.NOTIFICATION_BAR_ID, notification);
   }
 
   /**
@@ -374,7 +576,8 @@ public class NotificationService extends Service {
    * stream.
    */
   private final class VolumeIncreaser implements Runnable {
-    float start;
+    // Read by binder threads through volume().
+    volatile float start;
     float end;
     float increment;
 
@@ -395,6 +598,7 @@ public class NotificationService extends Service {
         start = end;
       }
       MediaSingleton.INSTANCE.setVolume(start);
+      publishState();
 
       if (Math.abs(start - end) > (float) 0.0001) {
         handler.postDelayed(volumeIncreaseCallback, 1000);
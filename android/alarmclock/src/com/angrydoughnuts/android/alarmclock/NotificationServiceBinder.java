@@ -15,7 +15,9 @@
 
 package com.angrydoughnuts.android.alarmclock;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import android.content.ComponentName;
 import android.content.Context;
@@ -24,14 +26,33 @@ import android.content.ServiceConnection;
 import android.os.IBinder;
 import android.os.RemoteException;
 
+/**
+ * This class is a wrapper for the process of binding to the
+ * NotificationService.  Like AlarmClockServiceBinder, commands made before
+ * binding completes are collected and sent in a single applyBatch() call as
+ * soon as it does: listener additions and removals for the same listener
+ * collapse to the last one, and acknowledgments are kept in order since
+ * each one ends a different session.  Other callbacks made before binding
+ * completes run after the batch, in the order they were made.  Callers
+ * which know that a call is idempotent (ie, a redraw) can pass a key to
+ * callLatest(), and only the most recent deferred call with that key is
+ * kept.  Must be used from the UI thread.
+ */
 public class NotificationServiceBinder {
   private Context context;
   private NotificationServiceInterface notify;
-  private LinkedList<ServiceCallback> callbacks;
+  // Deferred callbacks, oldest first.
+  private ArrayList<Deferred> callbacks;
+  // Maps listener -> true to add it or false to remove it.
+  private LinkedHashMap<RingingListener, Boolean> deferredListeners;
+  // The snooze minutes of each deferred acknowledgment, oldest first.
+  private ArrayList<Integer> deferredAcknowledges;
 
   NotificationServiceBinder(Context context) {
     this.context = context;
-    this.callbacks = new LinkedList<ServiceCallback>();
+    this.callbacks = new ArrayList<Deferred>();
+    this.deferredListeners = new LinkedHashMap<RingingListener, Boolean>();
+    this.deferredAcknowledges = new ArrayList<Integer>();
   }
 
   public void bind() {
@@ -54,9 +75,12 @@ public class NotificationServiceBinder {
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
       notify = NotificationServiceInterface.Stub.asInterface(service);
-      while (callbacks.size() > 0) {
-        ServiceCallback callback = callbacks.remove();
-        callback.run(notify);
+      sendBatch();
+      // Callbacks may defer more callbacks, so flush a copy.
+      ArrayList<Deferred> pending = new ArrayList<Deferred>(callbacks);
+      callbacks.clear();
+      for (Deferred deferred : pending) {
+        deferred.callback.run(notify);
       }
     }
 
@@ -66,24 +90,101 @@ public class NotificationServiceBinder {
     }
   };
 
+  private void sendBatch() {
+    if (deferredListeners.isEmpty() && deferredAcknowledges.isEmpty()) {
+      return;
+    }
+    final ArrayList<IBinder> remove = new ArrayList<IBinder>();
+    final ArrayList<IBinder> add = new ArrayList<IBinder>();
+    for (Map.Entry<RingingListener, Boolean> entry : deferredListeners.entrySet()) {
+      (entry.getValue() ? add : remove).add(entry.getKey().asBinder());
+    }
+    final int[] acknowledges = new int[deferredAcknowledges.size()];
+    for (int i = 0; i < acknowledges.length; ++i) {
+      acknowledges[i] = deferredAcknowledges.get(i);
+    }
+    deferredListeners.clear();
+    deferredAcknowledges.clear();
+    try {
+      notify.applyBatch(remove, add, acknowledges);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
+  }
+
   public void call(ServiceCallback callback) {
+    callLatest(null, callback);
+  }
+
+  /**
+   * Like call(), but if the service isn't bound yet, any earlier deferred
+   * call with the same key is dropped.  Only use this for calls where
+   * running the latest one is as good as running them all.
+   */
+  public void callLatest(Object key, ServiceCallback callback) {
     if (notify != null) {
       callback.run(notify);
-    } else {
-      callbacks.offer(callback);
+      return;
+    }
+    if (key != null) {
+      for (int i = 0; i < callbacks.size(); ++i) {
+        if (key.equals(callbacks.get(i).key)) {
+          callbacks.remove(i);
+          break;
+        }
+      }
+    }
+    // Appended so that the flush order reflects the latest requests.
+    callbacks.add(new Deferred(key, callback));
+  }
+
+  private static final class Deferred {
+    final Object key;
+    final ServiceCallback callback;
+
+    Deferred(Object key, ServiceCallback callback) {
+      this.key = key;
+      this.callback = callback;
     }
   }
 
   public void acknowledgeCurrentNotification(final int snoozeMinutes) {
-    call(new ServiceCallback() {
-      @Override
-      public void run(NotificationServiceInterface service) {
-        try {
-          service.acknowledgeCurrentNotification(snoozeMinutes);
-        } catch (RemoteException e) {
-          e.printStackTrace();
-        }
+    if (notify == null) {
+      deferredAcknowledges.add(snoozeMinutes);
+      return;
+    }
+    try {
+      notify.acknowledgeCurrentNotification(snoozeMinutes);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void addRingingListener(final RingingListener listener) {
+    if (notify == null) {
+      deferredListeners.put(listener, true);
+      return;
+    }
+    try {
+      notify.addRingingListener(listener);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
+  }
+
+  public void removeRingingListener(final RingingListener listener) {
+    if (notify == null) {
+      // A listener which was never added doesn't need to be removed.
+      Boolean pending = deferredListeners.remove(listener);
+      if (pending == null || !pending) {
+        deferredListeners.put(listener, false);
       }
-    });
+      return;
+    }
+    try {
+      notify.removeRingingListener(listener);
+    } catch (RemoteException e) {
+      e.printStackTrace();
+    }
   }
 }
@@ -17,7 +17,10 @@ package com.angrydoughnuts.android.alarmclock;
 
 import com.angrydoughnuts.android.alarmclock.NotificationService.NoAlarmsException;
 
+import java.util.List;
+
 import android.content.Context;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.widget.Toast;
 
@@ -56,6 +59,36 @@ public class NotificationServiceInterfaceStub extends NotificationServiceInterfa
     }
   }
 
+  @Override
+  public void addRingingListener(RingingListener listener) throws RemoteException {
+    service.addRingingListener(listener);
+  }
+
+  @Override
+  public void removeRingingListener(RingingListener listener) throws RemoteException {
+    service.removeRingingListener(listener);
+  }
+
+  @Override
+  public void applyBatch(List<IBinder> removeListeners, List<IBinder> addListeners,
+      int[] acknowledgeSnoozeMinutes) throws RemoteException {
+    for (IBinder listener : removeListeners) {
+      service.removeRingingListener(RingingListener.Stub.asInterface(listener));
+    }
+    for (IBinder listener : addListeners) {
+      service.addRingingListener(RingingListener.Stub.asInterface(listener));
+    }
+    for (int snoozeMinutes : acknowledgeSnoozeMinutes) {
+      debugToast("STOP NOTIFICATION");
+      try {
+        service.acknowledgeCurrentNotification(snoozeMinutes);
+      } catch (NoAlarmsException e) {
+        // Nothing left to acknowledge.
+        break;
+      }
+    }
+  }
+
   private void debugToast(String message) {
     Context context = service.getApplicationContext();
     if (AppSettings.isDebugMode(context)) {
@@ -17,7 +17,11 @@ package com.angrydoughnuts.android.alarmclock;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Random;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.Map;
 
 import android.app.AlarmManager;
@@ -29,24 +33,49 @@ import android.util.Log;
 /**
  * This container holds a list of all currently scheduled alarms.
  * Adding/removing alarms to this container schedules/unschedules PendingIntents
- * with the android AlarmManager service.
+ * with the android AlarmManager service.  All methods are synchronized so
+ * that it may be read from binder threads while AlarmClockService's worker
+ * thread modifies it.
  */
 public final class PendingAlarmList {
   // Maps alarmId -> alarm.
   private TreeMap<Long, PendingAlarm> pendingAlarms;
-  // Maps alarm time -> alarmId.
-  private TreeMap<AlarmTime, Long> alarmTimes;
+  // All alarms ordered by time.  Ties are broken by alarmId so that several
+  // alarms may be scheduled for the same instant (ie, a batch snooze).
+  private TreeSet<PendingAlarm> alarmTimes;
+  // The ids of the light entries scheduled by putLight().  They are left out
+  // of snapshots, since no schedule event describes them.
+  private HashSet<Long> lightIds = new HashSet<Long>();
   private AlarmManager alarmManager;
   private Context context;
+  // Incremented once per logical change by commit().  See PendingSchedule.
+  // Seeded randomly so
+  // that a restarted service is very unlikely to reuse a version which a
+  // client may still hold from the previous process.  Versions are only
+  // ever compared for equality; the seed says nothing about order.
+  private long version;
 
   public PendingAlarmList(Context context) {
     pendingAlarms = new TreeMap<Long, PendingAlarm>();
-    alarmTimes = new TreeMap<AlarmTime, Long>();
+    alarmTimes = new TreeSet<PendingAlarm>(new Comparator<PendingAlarm>() {
+      @Override
+      public int compare(PendingAlarm lhs, PendingAlarm rhs) {
+        int byTime = lhs.time().compareTo(rhs.time());
+        if (byTime != 0) {
+          return byTime;
+        }
+        if (lhs.alarmId() != rhs.alarmId()) {
+          return lhs.alarmId() < rhs.alarmId() ? -1 : 1;
+        }
+        return 0;
+      }
+    });
     alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
     this.context = context;
+    version = new Random().nextLong();
   }
 
-  public int size() {
+  public synchronized int size() {
     if (pendingAlarms.size() != alarmTimes.size()) {
       throw new IllegalStateException("Inconsistent pending alarms: "
           + pendingAlarms.size() + " vs " + alarmTimes.size());
@@ -54,7 +83,7 @@ public final class PendingAlarmList {
     return pendingAlarms.size();
   }
 
-  public void put(long alarmId, AlarmTime time) {
+  public synchronized void put(long alarmId, AlarmTime time) {
     Log.d("chase", "call put");
     putLight(alarmId, time);
     // Remove this alarm if it exists already.
@@ -67,8 +96,12 @@ public final class PendingAlarmList {
     // the extras bundle.
     Intent notifyIntent = new Intent(context, ReceiverAlarm.class);
     notifyIntent.setData(AlarmUtil.alarmIdToUri(alarmId));
-    PendingIntent scheduleIntent =
-      PendingIntent.getBroadcast(context, 0, notifyIntent, 0);
+    // The NotificationService orders firing alarms by this time.
+    notifyIntent.putExtra(NotificationService.EXTRAS_SCHEDULED_AT,
+        time.calendar().getTimeInMillis());
+    // An existing matching PendingIntent would otherwise keep its old time.
+    PendingIntent scheduleIntent = PendingIntent.getBroadcast(
+        context, 0, notifyIntent, PendingIntent.FLAG_UPDATE_CURRENT);
 
     // Schedule the alarm with the AlarmManager.
     // Previous instances of this intent will be overwritten in
@@ -97,16 +130,17 @@ public final class PendingAlarmList {
     }
 
     // Keep track of all scheduled alarms.
-    pendingAlarms.put(alarmId, new PendingAlarm(time, scheduleIntent));
-    alarmTimes.put(time, alarmId);
+    PendingAlarm alarm = new PendingAlarm(alarmId, time, scheduleIntent);
+    pendingAlarms.put(alarmId, alarm);
+    alarmTimes.add(alarm);
 
     if (pendingAlarms.size() != alarmTimes.size()) {
       // oh no
       for (Map.Entry<Long, PendingAlarm> entry : pendingAlarms.entrySet()) {
            Log.d("chase", "PendingKey: " + entry.getKey() + ". Value: " + entry.getValue());
       }
-      for (Map.Entry<AlarmTime, Long> entry : alarmTimes.entrySet()) {
-           Log.d("chase", "alarmKey: " + entry.getKey() + ". Value: " + entry.getValue());
+      for (PendingAlarm entry : alarmTimes) {
+           Log.d("chase", "alarmKey: " + entry.time() + ". Value: " + entry.alarmId());
       }
 
       throw new IllegalStateException("Inconsistent pending alarms: "
@@ -114,7 +148,7 @@ public final class PendingAlarmList {
     }
   }
 
-  public void putLight(long alarmId, AlarmTime time) {
+  private void putLight(long alarmId, AlarmTime time) {
     time = new AlarmTime(time);
     Log.d("chase", "putlight called");
     // Intents are considered equal if they have the same action, data, type,
@@ -123,15 +157,25 @@ public final class PendingAlarmList {
     // the alarm id in the data section of the intent rather than in
     // the extras bundle.
     alarmId = alarmId + 1000; // Super hacky.. need a unique id so add 1000
+    // Remove the light for this alarm if it exists already.  alarmTimes is a
+    // set of entries rather than a map keyed by time, so an old light entry
+    // which isn't removed first would stay in it next to the new one and
+    // leave alarmTimes inconsistent with pendingAlarms.  Removing also
+    // cancels the old light's PendingIntent.
+    remove(alarmId);
 
     Log.d("chase", "beforetime" + time);
+    long fireTime = time.calendar().getTimeInMillis();
     time.makeOlder(2); // add time to light alarm
     Log.d("chase", "after" + time);
     Intent notifyIntent = new Intent(context, ReceiverAlarm.class);
     notifyIntent.setData(AlarmUtil.alarmLightIdToUri(alarmId));
+    notifyIntent.putExtra(HelloService.EXTRAS_FIRE_TIME, fireTime);
     Log.d("chase", "scheduleIntent");
-    PendingIntent scheduleIntent =
-      PendingIntent.getBroadcast(context, 0, notifyIntent, 0);
+    // An existing matching PendingIntent (ie, left over from before the
+    // process restarted) would otherwise keep its old fire time.
+    PendingIntent scheduleIntent = PendingIntent.getBroadcast(
+        context, 0, notifyIntent, PendingIntent.FLAG_UPDATE_CURRENT);
 
     // Schedule the alarm with the AlarmManager.
     // Previous instances of this intent will be overwritten in
@@ -161,8 +205,10 @@ public final class PendingAlarmList {
     }
 
     // Keep track of all scheduled alarms.
-    pendingAlarms.put(alarmId, new PendingAlarm(time, scheduleIntent));
-    alarmTimes.put(time, alarmId);
+    PendingAlarm alarm = new PendingAlarm(alarmId, time, scheduleIntent);
+    pendingAlarms.put(alarmId, alarm);
+    alarmTimes.add(alarm);
+    lightIds.add(alarmId);
 
     if (pendingAlarms.size() != alarmTimes.size()) {
       throw new IllegalStateException("Inconsistent pending alarms2: "
@@ -170,16 +216,17 @@ public final class PendingAlarmList {
     }
   }
 
-  public boolean remove(long alarmId) {
+  public synchronized boolean remove(long alarmId) {
     PendingAlarm alarm = pendingAlarms.remove(alarmId);
     if (alarm == null) {
       return false;
     }
-    Long expectedAlarmId = alarmTimes.remove(alarm.time());
+    boolean removed = alarmTimes.remove(alarm);
+    lightIds.remove(alarmId);
     alarmManager.cancel(alarm.pendingIntent());
     alarm.pendingIntent().cancel();
 
-    if (expectedAlarmId != alarmId) {
+    if (!removed) {
       throw new IllegalStateException("Internal inconsistency in PendingAlarmList");
     }
 
@@ -191,38 +238,84 @@ public final class PendingAlarmList {
     return true;
   }
 
-  public AlarmTime nextAlarmTime() {
+  public synchronized AlarmTime nextAlarmTime() {
     if (alarmTimes.size() == 0) {
       return null;
     }
-    return alarmTimes.firstKey();
+    return alarmTimes.first().time();
   }
 
-  public AlarmTime pendingTime(long alarmId) {
+  public synchronized AlarmTime pendingTime(long alarmId) {
     PendingAlarm alarm = pendingAlarms.get(alarmId);
     return alarm == null ? null : alarm.time();
   }
 
-  public AlarmTime[] pendingTimes() {
+  public synchronized AlarmTime[] pendingTimes() {
     AlarmTime[] times = new AlarmTime[alarmTimes.size()];
-    alarmTimes.keySet().toArray(times);
+    int i = 0;
+    for (PendingAlarm alarm : alarmTimes) {
+      times[i++] = alarm.time();
+    }
     return times;
   }
 
-  public Long[] pendingAlarms() {
+  /**
+   * Ends one logical change to the schedule, ie, everything done to
+   * reschedule one alarm, however many put()s and remove()s it took.  The
+   * version is only incremented here, so that a schedule event describing
+   * that change accounts for exactly one version.
+   * @return the new version.
+   */
+  public synchronized long commit() {
+    return ++version;
+  }
+
+  public synchronized long version() {
+    return version;
+  }
+
+  /**
+   * @return every scheduled alarm in a single parcel, or null if the schedule
+   * has not changed since knownVersion.
+   */
+  public synchronized PendingSchedule snapshot(long knownVersion) {
+    if (knownVersion == version) {
+      return null;
+    }
+    long[] alarmIds = new long[pendingAlarms.size() - lightIds.size()];
+    long[] nextFire = new long[alarmIds.length];
+    int i = 0;
+    // TreeMap iterates in key order, which PendingSchedule relies on.
+    for (PendingAlarm alarm : pendingAlarms.values()) {
+      if (lightIds.contains(alarm.alarmId())) {
+        continue;
+      }
+      alarmIds[i] = alarm.alarmId();
+      nextFire[i] = alarm.time().calendar().getTimeInMillis();
+      ++i;
+    }
+    return new PendingSchedule(version, alarmIds, nextFire);
+  }
+
+  public synchronized Long[] pendingAlarms() {
     Long[] alarmIds = new Long[pendingAlarms.size()];
     pendingAlarms.keySet().toArray(alarmIds);
     return alarmIds;
   }
 
   private class PendingAlarm {
+    private long alarmId;
     private AlarmTime time;
     private PendingIntent pendingIntent;
 
-    PendingAlarm(AlarmTime time, PendingIntent pendingIntent) {
+    PendingAlarm(long alarmId, AlarmTime time, PendingIntent pendingIntent) {
+      this.alarmId = alarmId;
       this.time = time;
       this.pendingIntent = pendingIntent;
     }
+    public long alarmId() {
+      return alarmId;
+    }
     public AlarmTime time() {
       return time;
     }
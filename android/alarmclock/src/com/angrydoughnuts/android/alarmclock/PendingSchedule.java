@@ -0,0 +1,135 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.util.Arrays;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * An immutable snapshot of every scheduled alarm, returned in a single
+ * binder call so that list views don't need one call per row.  Alarm ids are
+ * sorted so that lookups are a binary search.  The version is incremented
+ * once for each schedule event (see PendingAlarmList.commit()), and light
+ * entries are left out, so a client can apply an event with the next version
+ * to its copy and claim that version.  A client holding a snapshot with the
+ * current version does not need to ask again.  Versions from different
+ * service processes are unrelated, so they must only be compared for
+ * equality, never ordered.
+ */
+public final class PendingSchedule implements Parcelable {
+  private final long version;
+  private final long[] alarmIds;
+  private final long[] nextFire;
+
+  public PendingSchedule(long version, long[] alarmIds, long[] nextFire) {
+    if (alarmIds.length != nextFire.length) {
+      throw new IllegalArgumentException("Mismatched schedule arrays: "
+          + alarmIds.length + " vs " + nextFire.length);
+    }
+    this.version = version;
+    this.alarmIds = alarmIds;
+    this.nextFire = nextFire;
+  }
+
+  public long version() {
+    return version;
+  }
+
+  public int size() {
+    return alarmIds.length;
+  }
+
+  public long alarmId(int index) {
+    return alarmIds[index];
+  }
+
+  /**
+   * @return the next time (in millis UTC) this alarm will fire, or -1 if
+   * it is not scheduled.
+   */
+  public long nextFire(long alarmId) {
+    int i = Arrays.binarySearch(alarmIds, alarmId);
+    return i < 0 ? -1 : nextFire[i];
+  }
+
+  /**
+   * @return a copy of this schedule with a single alarm changed, as reported
+   * by a ScheduleListener.  A negative nextFire removes the alarm.
+   */
+  public PendingSchedule with(long alarmId, long nextFire, long version) {
+    int i = Arrays.binarySearch(alarmIds, alarmId);
+    if (i >= 0 && nextFire >= 0) {
+      long[] times = this.nextFire.clone();
+      times[i] = nextFire;
+      return new PendingSchedule(version, alarmIds, times);
+    }
+    if (i < 0 && nextFire < 0) {
+      return new PendingSchedule(version, alarmIds, this.nextFire);
+    }
+    int size = alarmIds.length + (i < 0 ? 1 : -1);
+    long[] ids = new long[size];
+    long[] times = new long[size];
+    if (i >= 0) {
+      // Remove entry i.
+      System.arraycopy(alarmIds, 0, ids, 0, i);
+      System.arraycopy(this.nextFire, 0, times, 0, i);
+      System.arraycopy(alarmIds, i + 1, ids, i, size - i);
+      System.arraycopy(this.nextFire, i + 1, times, i, size - i);
+    } else {
+      // Insert at the insertion point.
+      int at = -(i + 1);
+      System.arraycopy(alarmIds, 0, ids, 0, at);
+      System.arraycopy(this.nextFire, 0, times, 0, at);
+      ids[at] = alarmId;
+      times[at] = nextFire;
+      System.arraycopy(alarmIds, at, ids, at + 1, alarmIds.length - at);
+      System.arraycopy(this.nextFire, at, times, at + 1, alarmIds.length - at);
+    }
+    return new PendingSchedule(version, ids, times);
+  }
+
+  private PendingSchedule(Parcel source) {
+    version = source.readLong();
+    alarmIds = source.createLongArray();
+    nextFire = source.createLongArray();
+  }
+
+  @Override
+  public void writeToParcel(Parcel dest, int flags) {
+    dest.writeLong(version);
+    dest.writeLongArray(alarmIds);
+    dest.writeLongArray(nextFire);
+  }
+
+  public static final Parcelable.Creator<PendingSchedule> CREATOR =
+    new Parcelable.Creator<PendingSchedule>() {
+      @Override
+      public PendingSchedule createFromParcel(Parcel source) {
+        return new PendingSchedule(source);
+      }
+      @Override
+      public PendingSchedule[] newArray(int size) {
+        return new PendingSchedule[size];
+      }
+    };
+
+  @Override
+  public int describeContents() {
+    return 0;
+  }
+}
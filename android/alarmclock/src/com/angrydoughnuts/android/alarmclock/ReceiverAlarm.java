@@ -6,6 +6,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 
@@ -19,13 +20,18 @@ public class ReceiverAlarm extends BroadcastReceiver {
         Log.d("chase", "call service");
         Intent helloService = new Intent(context, HelloService.class);
         helloService.setData(alarmUri);
+        helloService.putExtras(recvIntent);
 
         context.startService(helloService);
         return;
     }
 
     try {
-      WakeLock.acquire(context, alarmId);
+      // The NotificationService restarts the lease if this alarm has to wait
+      // for another session before it rings.
+      long timeoutMillis = AppSettings.alarmTimeOutMins(context) * 60 * 1000
+          + WakeLock.LEASE_SLACK_MILLIS;
+      WakeLock.acquire(context, alarmId, timeoutMillis);
     } catch (WakeLockException e) {
       if (AppSettings.isDebugMode(context)) {
         throw new IllegalStateException(e.getMessage());
@@ -34,7 +40,18 @@ public class ReceiverAlarm extends BroadcastReceiver {
 
     Intent notifyService = new Intent(context, NotificationService.class);
     notifyService.setData(alarmUri);
+    notifyService.putExtra(NotificationService.EXTRAS_SCHEDULED_AT,
+        recvIntent.getLongExtra(NotificationService.EXTRAS_SCHEDULED_AT,
+            System.currentTimeMillis()));
+    // Used to measure the latency of the notification activity's first frame.
+    notifyService.putExtra(ActivityAlarmNotification.EXTRAS_RECEIVED_AT, SystemClock.elapsedRealtime());
 
     context.startService(notifyService);
+
+    // Let the schedule's listeners know that this alarm has gone off.
+    Intent fired = new Intent(context, AlarmClockService.class);
+    fired.setData(alarmUri);
+    fired.putExtra(AlarmClockService.COMMAND_EXTRA, AlarmClockService.COMMAND_ALARM_FIRED);
+    context.startService(fired);
   }
 }
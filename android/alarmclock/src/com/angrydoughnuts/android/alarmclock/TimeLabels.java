@@ -0,0 +1,108 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.provider.Settings;
+import android.text.format.DateFormat;
+
+/**
+ * A table of time of day labels for the current locale and 12/24 hour
+ * setting.  It has one slot per minute of the day, or per second in debug
+ * mode, where seconds are shown.  Each label is formatted the first time
+ * it's needed and served from the table after that.  The table is replaced
+ * when the locale, the 12/24 hour setting or debug mode changes.
+ */
+final class TimeLabels {
+  private static TimeLabels current;
+  private static ContentObserver formatObserver;
+
+  private final Locale locale;
+  private final boolean showSeconds;
+  private final String[] labels;
+  // Formats in UTC so that labels are independent of daylight savings.
+  private final SimpleDateFormat formatter;
+
+  /**
+   * @return the table for the current settings.
+   */
+  public static synchronized TimeLabels get(Context context) {
+    if (formatObserver == null) {
+      watchSettings(context.getApplicationContext());
+    }
+    if (current == null || !current.locale.equals(Locale.getDefault())
+        || current.showSeconds != AppSettings.isDebugMode(context)) {
+      current = new TimeLabels(context);
+    }
+    return current;
+  }
+
+  private static synchronized void invalidate() {
+    current = null;
+  }
+
+  private static void watchSettings(Context context) {
+    formatObserver = new ContentObserver(null) {
+      @Override
+      public void onChange(boolean selfChange) {
+        invalidate();
+      }
+    };
+    context.getContentResolver().registerContentObserver(
+        Settings.System.getUriFor(Settings.System.TIME_12_24), false, formatObserver);
+  }
+
+  private TimeLabels(Context context) {
+    locale = Locale.getDefault();
+    showSeconds = AppSettings.isDebugMode(context);
+    labels = new String[showSeconds ? 24 * 60 * 60 : 24 * 60];
+    final String second = showSeconds ? ".ss" : "";
+    final String format;
+    if (DateFormat.is24HourFormat(context)) {
+      format = "HH:mm" + second;
+    } else {
+      format = "h:mm" + second + " aaa";
+    }
+    formatter = new SimpleDateFormat(format);
+    formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * @return the label for the time of day of the given calendar.
+   */
+  public String label(Calendar time) {
+    int index = time.get(Calendar.HOUR_OF_DAY) * 60 + time.get(Calendar.MINUTE);
+    if (showSeconds) {
+      index = index * 60 + time.get(Calendar.SECOND);
+    }
+    String label = labels[index];
+    if (label == null) {
+      final long secondOfDay = showSeconds ? index : index * 60L;
+      synchronized (formatter) {
+        label = formatter.format(new Date(secondOfDay * 1000));
+      }
+      labels[index] = label;
+    }
+    return label;
+  }
+}
@@ -0,0 +1,714 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.AbstractCursor;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.BaseColumns;
+import android.provider.MediaStore.Audio.AlbumColumns;
+import android.provider.MediaStore.Audio.AudioColumns;
+import android.provider.MediaStore.Audio.Media;
+import android.provider.MediaStore.MediaColumns;
+import android.util.Log;
+
+/**
+ * A process-wide, searchable index of the audio media on the phone, used by
+ * the tone picker.  The index is saved to a file so that it is available as
+ * soon as the process starts.  It is brought up to date in the background
+ * whenever MediaStore reports a change, and only rows which were added or
+ * modified since the last sync are read in full.
+ *
+ * Searches run against an immutable snapshot and are cheap enough to run on
+ * every keystroke.  A filter matches a row when every word of the filter
+ * (see filterWords()) appears, ignoring case, somewhere in one of the row's
+ * filtered columns.  MediaListView applies the same rule with LIKE when the
+ * index can't answer a query, so results don't depend on whether the index
+ * is ready.  Each filter word is looked up in the vocabulary of title,
+ * artist and album words, through a trigram index for longer words and by
+ * scanning the vocabulary for short ones, and the entries matching each
+ * word are then intersected.
+ */
+final class ToneIndex {
+  private static final String TAG = "ToneIndex";
+  private static final String CACHE_FILE = "tone_index";
+  private static final int CACHE_VERSION = 2;
+  // MediaStore reports changes in bursts while scanning, so wait this long
+  // after the last notification before syncing.
+  private static final long SYNC_DELAY_MS = 2000;
+  // The maximum number of ids in one "_id IN (...)" selection.
+  private static final int FETCH_CHUNK = 500;
+
+  /**
+   * The columns of the cursors returned by search().
+   */
+  public static final String[] COLUMNS = new String[] {
+    BaseColumns._ID,
+    MediaColumns.TITLE,
+    AudioColumns.ARTIST,
+    AudioColumns.ALBUM,
+  };
+
+  /**
+   * The columns of the cursors returned by albumsBy().
+   */
+  public static final String[] ALBUM_COLUMNS = new String[] {
+    BaseColumns._ID,
+    AlbumColumns.ALBUM,
+  };
+
+  private static final String[] FETCH_COLUMNS = new String[] {
+    BaseColumns._ID,
+    MediaColumns.TITLE,
+    AudioColumns.ARTIST,
+    AudioColumns.ALBUM,
+    MediaColumns.DATE_MODIFIED,
+    AudioColumns.ARTIST_ID,
+    AudioColumns.ALBUM_ID,
+  };
+
+  private static final String[] SYNC_COLUMNS = new String[] {
+    BaseColumns._ID,
+    MediaColumns.DATE_MODIFIED,
+  };
+
+  private static ToneIndex instance;
+
+  /**
+   * Returns the index, creating it and starting its first sync if needed.
+   */
+  public static synchronized ToneIndex get(Context context) {
+    if (instance == null) {
+      instance = new ToneIndex(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private final Context context;
+  private final Handler handler;
+  private final Runnable sync;
+  // Null until the cache has been read or the first sync has completed.
+  private volatile Snapshot snapshot;
+
+  private ToneIndex(Context context) {
+    this.context = context;
+    HandlerThread workerThread = new HandlerThread(TAG);
+    workerThread.start();
+    handler = new Handler(workerThread.getLooper());
+    sync = new Runnable() {
+      @Override
+      public void run() {
+        sync();
+      }
+    };
+    handler.post(new Runnable() {
+      @Override
+      public void run() {
+        readCache();
+        sync();
+      }
+    });
+
+    ContentObserver observer = new ContentObserver(handler) {
+      @Override
+      public void onChange(boolean selfChange) {
+        handler.removeCallbacks(sync);
+        handler.postDelayed(sync, SYNC_DELAY_MS);
+      }
+    };
+    ContentResolver resolver = context.getContentResolver();
+    resolver.registerContentObserver(Media.INTERNAL_CONTENT_URI, true, observer);
+    resolver.registerContentObserver(Media.EXTERNAL_CONTENT_URI, true, observer);
+  }
+
+  /**
+   * Finds the media on the given volume whose title, artist or album
+   * contain every word of the filter.  An empty filter matches everything.
+   * These are the columns MediaSongsView filters on.
+   * @param contentUri either Media.INTERNAL_CONTENT_URI or
+   * Media.EXTERNAL_CONTENT_URI.
+   * @return a cursor with COLUMNS, ordered by title, or null if the index
+   * isn't ready yet or doesn't cover contentUri.
+   */
+  public Cursor search(Uri contentUri, String filter) {
+    final Snapshot current = snapshot;
+    if (current == null) {
+      return null;
+    }
+    final boolean internal;
+    if (Media.INTERNAL_CONTENT_URI.equals(contentUri)) {
+      internal = true;
+    } else if (Media.EXTERNAL_CONTENT_URI.equals(contentUri)) {
+      internal = false;
+    } else {
+      return null;
+    }
+    return new ResultCursor(current.entries,
+        current.search(current.volumes[internal ? 1 : 0], filter));
+  }
+
+  /**
+   * Like search(), but limited to the songs on one album of the external
+   * volume.
+   * @return null if the index isn't ready or doesn't know the album.
+   */
+  public Cursor searchAlbum(long albumId, String filter) {
+    final Snapshot current = snapshot;
+    if (current == null || !current.albums.containsKey(albumId)) {
+      return null;
+    }
+    return new ResultCursor(current.entries,
+        current.search(current.albums.get(albumId), filter));
+  }
+
+  /**
+   * Lists the albums on the external volume with songs by the given artist
+   * whose album name contains every word of the filter.  This is the column
+   * MediaAlbumsView filters on.
+   * @return a cursor with ALBUM_COLUMNS, ordered by album name, or null if
+   * the index isn't ready or doesn't know the artist.
+   */
+  public Cursor albumsBy(long artistId, String filter) {
+    final Snapshot current = snapshot;
+    if (current == null || !current.artists.containsKey(artistId)) {
+      return null;
+    }
+    final ArrayList<String> words = filterWords(filter);
+    final HashMap<Long, String> names = new HashMap<Long, String>();
+    for (int row : current.artists.get(artistId)) {
+      final Entry entry = current.entries[row];
+      if (!names.containsKey(entry.albumId) && containsAll(entry.album, words)) {
+        names.put(entry.albumId, entry.album == null ? "" : entry.album);
+      }
+    }
+    final ArrayList<Long> albumIds = new ArrayList<Long>(names.keySet());
+    Collections.sort(albumIds, new Comparator<Long>() {
+      @Override
+      public int compare(Long a, Long b) {
+        return String.CASE_INSENSITIVE_ORDER.compare(names.get(a), names.get(b));
+      }
+    });
+    final MatrixCursor cursor = new MatrixCursor(ALBUM_COLUMNS, albumIds.size());
+    for (Long albumId : albumIds) {
+      cursor.addRow(new Object[] { albumId, names.get(albumId) });
+    }
+    return cursor;
+  }
+
+  // Brings the index up to date with MediaStore.  Runs on the worker thread.
+  private void sync() {
+    final long start = SystemClock.uptimeMillis();
+    final Snapshot current = snapshot;
+    final ArrayList<Entry> latest = new ArrayList<Entry>();
+    boolean changed = current == null;
+    int fetched = 0;
+    for (boolean internal : new boolean[] { true, false }) {
+      final HashMap<Long, Entry> known = new HashMap<Long, Entry>();
+      if (current != null) {
+        for (Entry entry : current.entries) {
+          if (entry.internal == internal) {
+            known.put(entry.id, entry);
+          }
+        }
+      }
+      final Uri uri = internal ? Media.INTERNAL_CONTENT_URI : Media.EXTERNAL_CONTENT_URI;
+      final Cursor cursor = context.getContentResolver().query(uri, SYNC_COLUMNS, null, null, null);
+      if (cursor == null) {
+        // The volume isn't available (ie, the SD card is unmounted).  Keep
+        // what we have so that it doesn't need to be read again.
+        latest.addAll(known.values());
+        continue;
+      }
+      final ArrayList<Long> stale = new ArrayList<Long>();
+      try {
+        while (cursor.moveToNext()) {
+          final Entry entry = known.remove(cursor.getLong(0));
+          if (entry != null && entry.modified == cursor.getLong(1)) {
+            latest.add(entry);
+          } else {
+            stale.add(cursor.getLong(0));
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+      // Anything still in known has been deleted.
+      if (!known.isEmpty() || !stale.isEmpty()) {
+        changed = true;
+      }
+      fetched += fetch(uri, internal, stale, latest);
+    }
+    if (!changed) {
+      return;
+    }
+    snapshot = new Snapshot(latest);
+    writeCache(latest);
+    Log.d(TAG, "Synced " + latest.size() + " entries (" + fetched + " read) in "
+        + (SystemClock.uptimeMillis() - start) + "ms");
+  }
+
+  // Reads the given rows in full and adds them to 'into'.  Returns the
+  // number of rows read.
+  private int fetch(Uri uri, boolean internal, ArrayList<Long> ids, ArrayList<Entry> into) {
+    int count = 0;
+    for (int start = 0; start < ids.size(); start += FETCH_CHUNK) {
+      final int end = Math.min(ids.size(), start + FETCH_CHUNK);
+      final StringBuilder selection = new StringBuilder(BaseColumns._ID + " IN (");
+      final String[] args = new String[end - start];
+      for (int i = start; i < end; ++i) {
+        selection.append(i == start ? "?" : ",?");
+        args[i - start] = ids.get(i).toString();
+      }
+      selection.append(')');
+      final Cursor cursor = context.getContentResolver().query(
+          uri, FETCH_COLUMNS, selection.toString(), args, null);
+      if (cursor == null) {
+        return count;
+      }
+      try {
+        while (cursor.moveToNext()) {
+          into.add(new Entry(cursor.getLong(0), internal, cursor.getLong(4),
+              cursor.getString(1), cursor.getString(2), cursor.getString(3),
+              cursor.getLong(5), cursor.getLong(6)));
+          count++;
+        }
+      } finally {
+        cursor.close();
+      }
+    }
+    return count;
+  }
+
+  private void readCache() {
+    DataInputStream in = null;
+    try {
+      in = new DataInputStream(new BufferedInputStream(context.openFileInput(CACHE_FILE)));
+      if (in.readInt() != CACHE_VERSION) {
+        return;
+      }
+      final int count = in.readInt();
+      final ArrayList<Entry> entries = new ArrayList<Entry>(count);
+      for (int i = 0; i < count; ++i) {
+        entries.add(new Entry(in.readLong(), in.readBoolean(), in.readLong(),
+            readString(in), readString(in), readString(in),
+            in.readLong(), in.readLong()));
+      }
+      snapshot = new Snapshot(entries);
+    } catch (FileNotFoundException e) {
+      // The index hasn't been saved yet.
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read " + CACHE_FILE, e);
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+
+  // Writes to a temporary file first so that a partial write never replaces
+  // a good cache.
+  private void writeCache(ArrayList<Entry> entries) {
+    final String tmpFile = CACHE_FILE + ".tmp";
+    DataOutputStream out = null;
+    try {
+      out = new DataOutputStream(new BufferedOutputStream(
+          context.openFileOutput(tmpFile, Context.MODE_PRIVATE)));
+      out.writeInt(CACHE_VERSION);
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeLong(entry.id);
+        out.writeBoolean(entry.internal);
+        out.writeLong(entry.modified);
+        writeString(out, entry.title);
+        writeString(out, entry.artist);
+        writeString(out, entry.album);
+        out.writeLong(entry.artistId);
+        out.writeLong(entry.albumId);
+      }
+      out.close();
+      out = null;
+      context.getFileStreamPath(tmpFile).renameTo(context.getFileStreamPath(CACHE_FILE));
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to write " + CACHE_FILE, e);
+    } finally {
+      if (out != null) {
+        try {
+          out.close();
+        } catch (IOException e) {}
+      }
+    }
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  /**
+   * Splits a filter into the words which must each appear in a matching
+   * row: runs of letters and digits, in lower case.
+   */
+  static ArrayList<String> filterWords(String filter) {
+    return tokenize(filter);
+  }
+
+  // Whether every word appears somewhere in text, ignoring case.
+  private static boolean containsAll(String text, ArrayList<String> words) {
+    final String lower = text == null ? "" : text.toLowerCase();
+    for (String word : words) {
+      if (!lower.contains(word)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // Splits text into lower case words of letters and digits.
+  private static ArrayList<String> tokenize(String text) {
+    final ArrayList<String> tokens = new ArrayList<String>();
+    if (text == null) {
+      return tokens;
+    }
+    final String lower = text.toLowerCase();
+    int start = -1;
+    for (int i = 0; i <= lower.length(); ++i) {
+      final boolean wordChar = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        tokens.add(lower.substring(start, i));
+        start = -1;
+      }
+    }
+    return tokens;
+  }
+
+  private static long trigram(String word, int start) {
+    return ((long) word.charAt(start) << 32)
+      | ((long) word.charAt(start + 1) << 16)
+      | word.charAt(start + 2);
+  }
+
+  private static final class Entry {
+    final long id;
+    final boolean internal;
+    // MediaColumns.DATE_MODIFIED when this entry was read.
+    final long modified;
+    final String title;
+    final String artist;
+    final String album;
+    final long artistId;
+    final long albumId;
+
+    Entry(long id, boolean internal, long modified, String title, String artist,
+        String album, long artistId, long albumId) {
+      this.id = id;
+      this.internal = internal;
+      this.modified = modified;
+      this.title = title;
+      this.artist = artist;
+      this.album = album;
+      this.artistId = artistId;
+      this.albumId = albumId;
+    }
+  }
+
+  private static final Comparator<Entry> BY_TITLE = new Comparator<Entry>() {
+    @Override
+    public int compare(Entry a, Entry b) {
+      final String aTitle = a.title == null ? "" : a.title;
+      final String bTitle = b.title == null ? "" : b.title;
+      return String.CASE_INSENSITIVE_ORDER.compare(aTitle, bTitle);
+    }
+  };
+
+  /**
+   * An immutable copy of the index along with its search structures.
+   */
+  private static final class Snapshot {
+    // All entries, ordered by title.  Entries are referred to by their
+    // position in this array.
+    final Entry[] entries;
+    // All entries for each volume: index 0 is external, 1 is internal.
+    final int[][] volumes;
+    // Album id -> entries, and artist id -> entries, for the external volume.
+    final HashMap<Long, int[]> albums;
+    final HashMap<Long, int[]> artists;
+    // Every word of every title, artist and album, sorted.
+    final String[] words;
+    // The entries containing each word, ascending.
+    final int[][] wordEntries;
+    // Trigram -> the words containing it, ascending.
+    final HashMap<Long, int[]> trigrams;
+
+    Snapshot(ArrayList<Entry> list) {
+      Collections.sort(list, BY_TITLE);
+      entries = list.toArray(new Entry[list.size()]);
+
+      final IntList external = new IntList();
+      final IntList internal = new IntList();
+      final HashMap<Long, IntList> byAlbum = new HashMap<Long, IntList>();
+      final HashMap<Long, IntList> byArtist = new HashMap<Long, IntList>();
+      final TreeMap<String, IntList> vocabulary = new TreeMap<String, IntList>();
+      for (int i = 0; i < entries.length; ++i) {
+        (entries[i].internal ? internal : external).add(i);
+        if (!entries[i].internal) {
+          listFor(byAlbum, entries[i].albumId).add(i);
+          listFor(byArtist, entries[i].artistId).add(i);
+        }
+        for (String field : new String[] { entries[i].title, entries[i].artist, entries[i].album }) {
+          for (String word : tokenize(field)) {
+            IntList containing = vocabulary.get(word);
+            if (containing == null) {
+              containing = new IntList();
+              vocabulary.put(word, containing);
+            }
+            containing.addOnce(i);
+          }
+        }
+      }
+      volumes = new int[][] { external.toArray(), internal.toArray() };
+      albums = toArrays(byAlbum);
+      artists = toArrays(byArtist);
+
+      words = new String[vocabulary.size()];
+      wordEntries = new int[vocabulary.size()][];
+      final HashMap<Long, IntList> wordsByTrigram = new HashMap<Long, IntList>();
+      int w = 0;
+      for (Map.Entry<String, IntList> word : vocabulary.entrySet()) {
+        words[w] = word.getKey();
+        wordEntries[w] = word.getValue().toArray();
+        for (int i = 0; i + 3 <= words[w].length(); ++i) {
+          listFor(wordsByTrigram, trigram(words[w], i)).addOnce(w);
+        }
+        w++;
+      }
+      trigrams = toArrays(wordsByTrigram);
+    }
+
+    private static IntList listFor(HashMap<Long, IntList> lists, long key) {
+      IntList list = lists.get(key);
+      if (list == null) {
+        list = new IntList();
+        lists.put(key, list);
+      }
+      return list;
+    }
+
+    private static HashMap<Long, int[]> toArrays(HashMap<Long, IntList> lists) {
+      final HashMap<Long, int[]> arrays = new HashMap<Long, int[]>(lists.size() * 4 / 3 + 1);
+      for (Map.Entry<Long, IntList> list : lists.entrySet()) {
+        arrays.put(list.getKey(), list.getValue().toArray());
+      }
+      return arrays;
+    }
+
+    // Returns the candidates which match every word of the filter.
+    int[] search(int[] candidates, String filter) {
+      final ArrayList<String> tokens = tokenize(filter);
+      if (tokens.isEmpty()) {
+        return candidates;
+      }
+      BitSet matches = null;
+      for (String token : tokens) {
+        final BitSet tokenMatches = new BitSet(entries.length);
+        final IntList matchingWords = matchingWords(token);
+        for (int i = 0; i < matchingWords.size; ++i) {
+          for (int entry : wordEntries[matchingWords.values[i]]) {
+            tokenMatches.set(entry);
+          }
+        }
+        if (matches == null) {
+          matches = tokenMatches;
+        } else {
+          matches.and(tokenMatches);
+        }
+        if (matches.isEmpty()) {
+          break;
+        }
+      }
+      final IntList result = new IntList();
+      for (int candidate : candidates) {
+        if (matches.get(candidate)) {
+          result.add(candidate);
+        }
+      }
+      return result.toArray();
+    }
+
+    // Returns the words which contain the token anywhere.  Tokens shorter
+    // than a trigram have no trigram to look up, so the vocabulary is
+    // scanned for them.
+    private IntList matchingWords(String token) {
+      final IntList matching = new IntList();
+      if (token.length() < 3) {
+        for (int w = 0; w < words.length; ++w) {
+          if (words[w].contains(token)) {
+            matching.add(w);
+          }
+        }
+        return matching;
+      }
+      // Every matching word contains every trigram of the token, so checking
+      // the words of the rarest trigram is enough.
+      int[] candidates = null;
+      for (int i = 0; i + 3 <= token.length(); ++i) {
+        final int[] containing = trigrams.get(trigram(token, i));
+        if (containing == null) {
+          return matching;
+        }
+        if (candidates == null || containing.length < candidates.length) {
+          candidates = containing;
+        }
+      }
+      for (int w : candidates) {
+        if (words[w].contains(token)) {
+          matching.add(w);
+        }
+      }
+      return matching;
+    }
+  }
+
+  /**
+   * A growable array of ints.
+   */
+  private static final class IntList {
+    int[] values = new int[4];
+    int size;
+
+    void add(int value) {
+      if (size == values.length) {
+        final int[] grown = new int[size * 2];
+        System.arraycopy(values, 0, grown, 0, size);
+        values = grown;
+      }
+      values[size++] = value;
+    }
+
+    // Values are added in ascending order, so a duplicate can only be the
+    // last value.
+    void addOnce(int value) {
+      if (size == 0 || values[size - 1] != value) {
+        add(value);
+      }
+    }
+
+    int[] toArray() {
+      final int[] array = new int[size];
+      System.arraycopy(values, 0, array, 0, size);
+      return array;
+    }
+  }
+
+  /**
+   * A cursor over a set of search results.  Rows are read from the snapshot
+   * as they are displayed, so creating one is cheap however many rows match.
+   */
+  private static final class ResultCursor extends AbstractCursor {
+    private final Entry[] entries;
+    private final int[] rows;
+
+    ResultCursor(Entry[] entries, int[] rows) {
+      this.entries = entries;
+      this.rows = rows;
+    }
+
+    @Override
+    public int getCount() {
+      return rows.length;
+    }
+
+    @Override
+    public String[] getColumnNames() {
+      return COLUMNS;
+    }
+
+    @Override
+    public String getString(int column) {
+      final Entry entry = entries[rows[getPosition()]];
+      switch (column) {
+        case 0: return Long.toString(entry.id);
+        case 1: return entry.title;
+        case 2: return entry.artist;
+        case 3: return entry.album;
+        default: throw new IllegalArgumentException("Unknown column: " + column);
+      }
+    }
+
+    @Override
+    public long getLong(int column) {
+      if (column == 0) {
+        return entries[rows[getPosition()]].id;
+      }
+      return Long.parseLong(getString(column));
+    }
+
+    @Override
+    public int getInt(int column) {
+      return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+      return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+      return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+      return getLong(column);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+      return getString(column) == null;
+    }
+  }
+}
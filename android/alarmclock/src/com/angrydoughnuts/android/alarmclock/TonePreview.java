@@ -0,0 +1,168 @@
+/****************************************************************************
+ * Copyright 2010 kraigs.android@gmail.com
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ****************************************************************************/
+
+package com.angrydoughnuts.android.alarmclock;
+
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.media.MediaPlayer;
+import android.media.MediaPlayer.OnErrorListener;
+import android.media.MediaPlayer.OnPreparedListener;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Plays previews of tones in the media picker.  Players are prepared
+ * asynchronously, so a tap never waits for a media file to be opened and
+ * decoded on the UI thread.  The tones next to the one being previewed are
+ * prepared ahead of time, so stepping through a list starts playing right
+ * away.  Players for any other tones are released, which cancels their
+ * prepares if they are still in flight.  Must be used from the UI thread.
+ */
+final class TonePreview {
+  private static final String TAG = "TonePreview";
+
+  private final Context context;
+  // The tone being previewed and its prepared neighbours.
+  private HashMap<Uri, Slot> slots = new HashMap<Uri, Slot>();
+  private Slot playing;
+
+  public TonePreview(Context context) {
+    this.context = context;
+  }
+
+  /**
+   * Stops the current preview and plays the given tone as soon as it is
+   * prepared.
+   * @param neighbours tones likely to be previewed next, which are prepared
+   * but not played.
+   */
+  public void play(Uri uri, List<Uri> neighbours) {
+    stop();
+    final HashMap<Uri, Slot> latest = new HashMap<Uri, Slot>();
+    playing = obtain(uri, latest);
+    for (Uri neighbour : neighbours) {
+      obtain(neighbour, latest);
+    }
+    // Cancel everything which is no longer wanted.
+    for (Slot slot : slots.values()) {
+      if (!latest.containsKey(slot.uri)) {
+        slot.release();
+      }
+    }
+    slots = latest;
+    playing.play();
+  }
+
+  /**
+   * Stops the current preview.  Prepared players are kept.
+   */
+  public void stop() {
+    if (playing != null) {
+      playing.stop();
+      playing = null;
+    }
+  }
+
+  /**
+   * Releases every player.  The preview can still be used afterwards.
+   */
+  public void release() {
+    playing = null;
+    for (Slot slot : slots.values()) {
+      slot.release();
+    }
+    slots.clear();
+  }
+
+  // Moves the slot for uri into 'into', preparing a new player if there
+  // isn't a usable one already.
+  private Slot obtain(Uri uri, HashMap<Uri, Slot> into) {
+    Slot slot = into.get(uri);
+    if (slot == null) {
+      slot = slots.get(uri);
+    }
+    if (slot == null || slot.failed) {
+      if (slot != null) {
+        slot.release();
+      }
+      slot = new Slot(uri);
+    }
+    into.put(uri, slot);
+    return slot;
+  }
+
+  private final class Slot implements OnPreparedListener, OnErrorListener {
+    final Uri uri;
+    final MediaPlayer player;
+    boolean prepared;
+    boolean failed;
+    boolean playWhenPrepared;
+
+    Slot(Uri uri) {
+      this.uri = uri;
+      player = new MediaPlayer();
+      player.setOnPreparedListener(this);
+      player.setOnErrorListener(this);
+      try {
+        player.setDataSource(context, uri);
+        player.prepareAsync();
+      } catch (Exception e) {
+        Log.w(TAG, "Unable to prepare " + uri, e);
+        failed = true;
+      }
+    }
+
+    void play() {
+      if (prepared) {
+        player.start();
+      } else {
+        playWhenPrepared = true;
+      }
+    }
+
+    void stop() {
+      playWhenPrepared = false;
+      if (prepared && player.isPlaying()) {
+        player.pause();
+        player.seekTo(0);
+      }
+    }
+
+    void release() {
+      playWhenPrepared = false;
+      player.release();
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp) {
+      prepared = true;
+      if (playWhenPrepared) {
+        playWhenPrepared = false;
+        player.start();
+      }
+    }
+
+    @Override
+    public boolean onError(MediaPlayer mp, int what, int extra) {
+      Log.w(TAG, "Error " + what + "/" + extra + " playing " + uri);
+      failed = true;
+      prepared = false;
+      return true;
+    }
+  }
+}
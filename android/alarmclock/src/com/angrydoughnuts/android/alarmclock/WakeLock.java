@@ -1,10 +1,22 @@
 package com.angrydoughnuts.android.alarmclock;
 
+import java.util.HashSet;
 import java.util.TreeMap;
 
 import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
 
+/**
+ * Hands out time-bounded wake lock leases to firing alarms.  All leases share
+ * a single underlying screen wake lock, which is held while at least one
+ * lease is outstanding.  A lease which is not released before its timeout
+ * expires on its own, so a lost acknowledgment can no longer leak the lock.
+ * Acquisition counts and hold times are recorded for debugging; see stats().
+ */
 public class WakeLock {
   public static class WakeLockException extends Exception {
     private static final long serialVersionUID = 1L;
@@ -13,51 +25,188 @@ public class WakeLock {
     }
   }
 
-  private static final TreeMap<Long, PowerManager.WakeLock> wakeLocks =
-    new TreeMap<Long, PowerManager.WakeLock>();
+  private static final String TAG = "WakeLock";
+  // Leases outlive the auto-dismiss timeout by this much, so they only
+  // expire on their own if the acknowledgment is lost.
+  public static final long LEASE_SLACK_MILLIS = 60 * 1000;
 
-  public static final void acquire(Context context, long alarmId) throws WakeLockException {
-    if (wakeLocks.containsKey(alarmId)) {
+  // Maps alarmId -> lease.
+  private static final TreeMap<Long, Lease> leases = new TreeMap<Long, Lease>();
+  // Leases which timed out but have not yet been released by their owner.
+  private static final HashSet<Long> expired = new HashSet<Long>();
+  private static PowerManager.WakeLock wakeLock;
+  private static Handler handler;
+  private static long heldSince;
+
+  // Metrics.
+  private static int acquireCount;
+  private static int expireCount;
+  private static int maxConcurrent;
+  private static final Histogram leaseHoldTimes = new Histogram();
+  private static final Histogram lockHoldTimes = new Histogram();
+
+  public static final synchronized void acquire(Context context, long alarmId, long timeoutMillis) throws WakeLockException {
+    if (leases.containsKey(alarmId)) {
       throw new WakeLockException("Multiple acquisitions of wake lock for id: " + alarmId);
     }
+    expired.remove(alarmId);
 
-    PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-    PowerManager.WakeLock wakeLock = powerManager.newWakeLock(
-        PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP,
-        "Alarm Notification Wake Lock id " + alarmId);
-    wakeLock.setReferenceCounted(false);
+    if (wakeLock == null) {
+      PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+      wakeLock = powerManager.newWakeLock(
+          PowerManager.SCREEN_DIM_WAKE_LOCK | PowerManager.ACQUIRE_CAUSES_WAKEUP,
+          "Alarm Notification Wake Lock");
+      wakeLock.setReferenceCounted(false);
+      handler = new Handler(Looper.getMainLooper());
+    }
+
+    final long now = SystemClock.elapsedRealtime();
+    if (leases.size() == 0) {
+      heldSince = now;
+    }
+    // The lock isn't reference counted, so acquiring it while it is held
+    // does nothing and ACQUIRE_CAUSES_WAKEUP never fires.  Drop and retake it
+    // so that the screen wakes up for this alarm as well.
+    if (wakeLock.isHeld()) {
+      wakeLock.release();
+    }
     wakeLock.acquire();
 
-    wakeLocks.put(alarmId, wakeLock);
+    Lease lease = new Lease(alarmId, now);
+    leases.put(alarmId, lease);
+    handler.postDelayed(lease, timeoutMillis);
+
+    acquireCount++;
+    maxConcurrent = Math.max(maxConcurrent, leases.size());
   }
 
-  public static final void assertHeld(long alarmId) throws WakeLockException {
-    PowerManager.WakeLock wakeLock = wakeLocks.get(alarmId);
-    if (wakeLock == null || !wakeLock.isHeld()) {
+  /**
+   * Restarts the timeout of an alarm's lease.  Used when an alarm which
+   * waited in the queue starts ringing, so its lease covers the time it
+   * actually rings.  A lease which already timed out while waiting is
+   * acquired again.
+   */
+  public static final synchronized void extend(Context context, long alarmId, long timeoutMillis) throws WakeLockException {
+    if (expired.contains(alarmId)) {
+      acquire(context, alarmId, timeoutMillis);
+      return;
+    }
+    assertHeld(alarmId);
+    Lease lease = leases.get(alarmId);
+    handler.removeCallbacks(lease);
+    handler.postDelayed(lease, timeoutMillis);
+  }
+
+  public static final synchronized void assertHeld(long alarmId) throws WakeLockException {
+    if (!leases.containsKey(alarmId) || wakeLock == null || !wakeLock.isHeld()) {
       throw new WakeLockException("Wake lock not held for alarm id: " + alarmId);
     }
   }
 
-  public static final void assertAtLeastOneHeld() throws WakeLockException {
-    for (PowerManager.WakeLock wakeLock : wakeLocks.values()) {
-      if (wakeLock.isHeld()) {
-        return;
-      }
+  public static final synchronized void assertAtLeastOneHeld() throws WakeLockException {
+    if (leases.size() == 0 || wakeLock == null || !wakeLock.isHeld()) {
+      throw new WakeLockException("No wake locks are held.");
     }
-    throw new WakeLockException("No wake locks are held.");
   }
 
-  public static final void assertNoneHeld() throws WakeLockException {
-    for (PowerManager.WakeLock wakeLock : wakeLocks.values()) {
-      if (wakeLock.isHeld()) {
-        throw new WakeLockException("A wake lock is held.");
-      }
+  public static final synchronized void assertNoneHeld() throws WakeLockException {
+    if (leases.size() > 0 || (wakeLock != null && wakeLock.isHeld())) {
+      throw new WakeLockException("A wake lock is held.");
     }
   }
 
-  public static final void release(long alarmId) throws WakeLockException {
+  public static final synchronized void release(long alarmId) throws WakeLockException {
+    // The lease timed out first.  That has already been accounted for.
+    if (expired.remove(alarmId)) {
+      return;
+    }
     assertHeld(alarmId);
-    PowerManager.WakeLock wakeLock = wakeLocks.remove(alarmId);
-    wakeLock.release();
+    Lease lease = leases.remove(alarmId);
+    handler.removeCallbacks(lease);
+    endLease(lease);
+  }
+
+  /**
+   * A human readable summary of the lease metrics.
+   */
+  public static final synchronized String stats() {
+    return "acquired: " + acquireCount
+      + " expired: " + expireCount
+      + " outstanding: " + leases.size()
+      + " max concurrent: " + maxConcurrent
+      + "\nlease hold times: " + leaseHoldTimes
+      + "\nlock hold times: " + lockHoldTimes;
+  }
+
+  private static void expire(Lease lease) {
+    if (leases.get(lease.alarmId) != lease) {
+      return;
+    }
+    leases.remove(lease.alarmId);
+    expired.add(lease.alarmId);
+    expireCount++;
+    Log.w(TAG, "Wake lock lease expired for alarm id: " + lease.alarmId);
+    endLease(lease);
+  }
+
+  private static void endLease(Lease lease) {
+    final long now = SystemClock.elapsedRealtime();
+    leaseHoldTimes.record(now - lease.acquiredAt);
+    if (leases.size() == 0) {
+      wakeLock.release();
+      lockHoldTimes.record(now - heldSince);
+      Log.d(TAG, stats());
+    }
+  }
+
+  private static final class Lease implements Runnable {
+    final long alarmId;
+    final long acquiredAt;
+
+    Lease(long alarmId, long acquiredAt) {
+      this.alarmId = alarmId;
+      this.acquiredAt = acquiredAt;
+    }
+
+    @Override
+    public void run() {
+      synchronized (WakeLock.class) {
+        expire(this);
+      }
+    }
+  }
+
+  /**
+   * Counts durations in a fixed set of buckets.
+   */
+  private static final class Histogram {
+    private static final long[] BOUNDS = {
+      1000, 10 * 1000, 60 * 1000, 5 * 60 * 1000, 10 * 60 * 1000,
+      30 * 60 * 1000, 60 * 60 * 1000
+    };
+    private static final String[] NAMES = {
+      "<1s", "<10s", "<1m", "<5m", "<10m", "<30m", "<60m", ">=60m"
+    };
+    private final int[] counts = new int[NAMES.length];
+
+    void record(long millis) {
+      int i = 0;
+      while (i < BOUNDS.length && millis >= BOUNDS[i]) {
+        ++i;
+      }
+      counts[i]++;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder s = new StringBuilder();
+      for (int i = 0; i < counts.length; ++i) {
+        if (counts[i] == 0) {
+          continue;
+        }
+        s.append(NAMES[i]).append('=').append(counts[i]).append(' ');
+      }
+      return s.toString();
+    }
   }
 }
@@ -32,12 +32,12 @@ public class Week implements Parcelable {
   private boolean[] bitmask;
 
   public Week(Parcel source) {
-    bitmask = source.createBooleanArray();
+    this(source.readInt());
   }
 
   @Override
   public void writeToParcel(Parcel dest, int flags) {
-    dest.writeBooleanArray(bitmask);
+    dest.writeInt(toBits());
   }
 
   public Week() {
@@ -55,6 +55,31 @@ public class Week implements Parcelable {
     this.bitmask = bitmask;
   }
 
+  /**
+   * Construct a Week from the packed form returned by toBits().
+   * @param bits
+   */
+  public Week(int bits) {
+    this();
+    for (Day day : Day.values()) {
+      bitmask[day.ordinal()] = (bits & (1 << day.ordinal())) != 0;
+    }
+  }
+
+  /**
+   * @return the days of this week packed one bit per day, bit 0 is Sunday.
+   * This is the same layout that is stored in the database.
+   */
+  public int toBits() {
+    int bits = 0;
+    for (Day day : Day.values()) {
+      if (bitmask[day.ordinal()]) {
+        bits |= 1 << day.ordinal();
+      }
+    }
+    return bits;
+  }
+
   public boolean[] bitmask() {
     return bitmask;
   }